@@ -0,0 +1,100 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.Random;
+
+/**
+ * Test data shared by the benchmarks.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPBenchmarkData {
+
+    private AMASPBenchmarkData() {
+    }
+
+    //Largest message the 3 hex digits of the length field can describe
+    static final int MAX_PAYLOAD = 0xFFF;
+
+    /**
+     * @param size The payload size (0 to MAX_PAYLOAD).
+     * @return A printable ASCII payload (fixed seed).
+     */
+    static byte[] payload(int size) {
+        if (size < 0 || size > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload size out of 0 to 0xFFF: " + size);
+        }
+        Random random = new Random(size);
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (' ' + random.nextInt(95));
+        }
+        return payload;
+    }
+
+    /**
+     * @param packetType MRP, SRP, CEP or SIP.
+     * @return The packet type character.
+     */
+    static byte typeChar(String packetType) {
+        switch (packetType) {
+            case "MRP":
+                return '?';
+            case "SRP":
+                return '#';
+            case "CEP":
+                return '~';
+            case "SIP":
+                return '!';
+            default:
+                throw new IllegalArgumentException(packetType);
+        }
+    }
+
+    /**
+     * Encodes a stream of identical packets (the in-memory byte source of the
+     * decoding benchmarks).
+     *
+     * @param packetType MRP, SRP, CEP or SIP.
+     * @param eCheck The error checking algorithm.
+     * @param payloadSize The message size (MRP and SRP).
+     * @param count The number of packets.
+     * @return The encoded packets, one after the other.
+     */
+    static byte[] stream(String packetType, ErrorCheckType eCheck, int payloadSize, int count) {
+        AMASPSerialMaster serial = new AMASPSerialMaster();
+        serial.setErrorCheckType(eCheck);
+        AMASPFrameEncoder encoder = new AMASPFrameEncoder(serial);
+        byte typeChar = typeChar(packetType);
+        byte[] payload = payload(payloadSize);
+        boolean dataPacket = typeChar == '?' || typeChar == '#';
+        int frameSize = dataPacket ? AMASPFrameEncoder.DATA_OVERHEAD + payloadSize : AMASPFrameEncoder.CODE_PACKET_SIZE;
+        byte[] stream = new byte[frameSize * count];
+        for (int i = 0; i < count; i++) {
+            if (dataPacket) {
+                encoder.encodeData(stream, i * frameSize, typeChar, i & 0xFFF, payload, 0, payloadSize);
+            } else {
+                encoder.encodeCode(stream, i * frameSize, typeChar, i & 0xFFF, i & 0xFF);
+            }
+        }
+        return stream;
+    }
+}
@@ -0,0 +1,105 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Packet decoding benchmark. The packets are fed to the decoder from an
+ * in-memory byte stream in chunks, as the bulk reads of readPacket() do.
+ *
+ * Each operation decodes one packet.
+ *
+ * @author Andre L. Delai
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AMASPDecodeBenchmark {
+
+    private static final int PACKETS = 64;
+
+    @Param({"MRP", "SRP", "CEP", "SIP"})
+    public String packetType;
+
+    @Param({"0", "16", "256", "4095"})
+    public int payloadSize;
+
+    @Param({"None", "CRC16"})
+    public String errorCheck;
+
+    @Param({"64", "4111"})
+    public int chunkSize;
+
+    private AMASPFrameDecoder decoder;
+    private byte[] stream;
+    private int pos;
+
+    @Setup
+    public void setup() {
+        ErrorCheckType eCheck = ErrorCheckType.valueOf(errorCheck);
+        decoder = new AMASPFrameDecoder(new AMASPSerialMaster());
+        stream = AMASPBenchmarkData.stream(packetType, eCheck, payloadSize, PACKETS);
+        pos = 0;
+    }
+
+    private void nextFrame() {
+        do {
+            if (pos == stream.length) {
+                pos = 0;
+            }
+            pos += decoder.decode(stream, pos, Math.min(chunkSize, stream.length - pos));
+        } while (!decoder.isFrameReady());
+    }
+
+    /**
+     * Decoding only (the fields stay in the decoder).
+     */
+    @Benchmark
+    public int decode() {
+        nextFrame();
+        return decoder.getDeviceId();
+    }
+
+    /**
+     * Decoding and copying of the message, as readPacket() does.
+     */
+    @Benchmark
+    public void decodeAndCopy(Blackhole blackhole) {
+        nextFrame();
+        blackhole.consume(Arrays.copyOfRange(decoder.getFrame(), 9, 9 + decoder.getCodeLength()));
+    }
+}
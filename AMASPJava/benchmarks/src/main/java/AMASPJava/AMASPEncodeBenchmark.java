@@ -0,0 +1,96 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packet encoding benchmark (the work of sendRequest, sendResponse,
+ * sendInterruption and sendError without the serial write), against the
+ * lookup of the same packet in an AMASPFrameCache.
+ *
+ * @author Andre L. Delai
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AMASPEncodeBenchmark {
+
+    @Param({"MRP", "SRP", "CEP", "SIP"})
+    public String packetType;
+
+    @Param({"0", "16", "256", "4095"})
+    public int payloadSize;
+
+    @Param({"None", "XOR8", "checksum16", "LRC16", "fletcher16", "CRC16"})
+    public String errorCheck;
+
+    private AMASPSerialMaster serial;
+    private AMASPFrameEncoder encoder;
+    private AMASPFrameCache cache;
+    private PacketType type;
+    private final byte[] frame = new byte[AMASPSerial.PKTMAXSIZE];
+    private byte[] payload;
+    private byte typeChar;
+    private boolean dataPacket;
+
+    @Setup
+    public void setup() {
+        serial = new AMASPSerialMaster();
+        serial.setErrorCheckType(ErrorCheckType.valueOf(errorCheck));
+        encoder = new AMASPFrameEncoder(serial);
+        cache = new AMASPFrameCache(64);
+        type = PacketType.valueOf(packetType);
+        payload = AMASPBenchmarkData.payload(payloadSize);
+        typeChar = AMASPBenchmarkData.typeChar(packetType);
+        dataPacket = typeChar == '?' || typeChar == '#';
+    }
+
+    @Benchmark
+    public int encode() {
+        if (dataPacket) {
+            return encoder.encodeData(frame, 0, typeChar, 0x123, payload, 0, payload.length);
+        }
+        return encoder.encodeCode(frame, 0, typeChar, 0x123, 0x45);
+    }
+
+    @Benchmark
+    public AMASPPreparedFrame cached() {
+        if (dataPacket) {
+            return cache.getData(serial, typeChar, type, 0x123, payload, payload.length);
+        }
+        return cache.getCode(serial, typeChar, type, 0x123, 0x45);
+    }
+}
@@ -0,0 +1,75 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Error checking benchmark of each algorithm, with the reference (bit-wise)
+ * methods of AMASPSerial and with the table driven engine.
+ *
+ * @author Andre L. Delai
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AMASPErrorCheckBenchmark {
+
+    @Param({"XOR8", "checksum16", "LRC16", "fletcher16", "CRC16"})
+    public String errorCheck;
+
+    @Param({"0", "16", "256", "4095"})
+    public int payloadSize;
+
+    @Param({"reference", "table"})
+    public String engine;
+
+    private AMASPSerialMaster serial;
+    private ErrorCheckType eCheck;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        serial = new AMASPSerialMaster();
+        serial.setErrorCheckEngine("table".equals(engine) ? AMASPTableErrorCheck.getInstance() : null);
+        eCheck = ErrorCheckType.valueOf(errorCheck);
+        //Header and message of a MRP packet
+        data = AMASPBenchmarkData.stream("MRP", eCheck, payloadSize, 1);
+    }
+
+    @Benchmark
+    public int errorCheck() {
+        return serial.errorCheck(data, payloadSize + 9, eCheck);
+    }
+}
@@ -0,0 +1,352 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous (pipelined) API over an AMASP master.
+ *
+ * Requests are sent right away and return a future which is completed by a
+ * background reader (AMASPReader) when the SRP or CEP packet with the same
+ * device ID arrives. The responses of each device are matched to its
+ * requests in order. Several requests can be outstanding at once, limited per
+ * device and in total, and every request has its own deadline.
+ *
+ * The futures are completed from the reading thread, so the dependent
+ * actions which may block should use the async variants of CompletableFuture.
+ *
+ * The packets carry no request ID, so a request which times out is removed
+ * and a late answer which arrives after a newer request of the device was
+ * sent completes that request instead. Callers which can not tell the
+ * answers apart should leave a device idle for a while after a timeout (as
+ * AMASPTcpGateway does) or carry their own sequence numbers in the messages
+ * (as the transfer streams do).
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPAsyncMaster implements AMASPReader.PacketListener {
+
+    private static final int DEVICES = 0x1000;
+
+    private final AMASPSerialMaster master;
+    private final AMASPReader reader;
+    private final int maxPerDevice;
+    private final int maxTotal;
+    //Own timer (recreated by start() after stop()) or shared one
+    private volatile ScheduledExecutorService timer;
+    private final boolean ownTimer;
+    private final Object sendLock = new Object();
+
+    //Outstanding requests per device ID (guarded by this)
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<PendingRequest>[] pending = new ArrayDeque[DEVICES];
+    private int outstanding = 0;
+    private long defaultTimeout = 1000;
+
+    private final class PendingRequest {
+
+        final int deviceId;
+        final long timeoutMillis;
+        final CompletableFuture<PacketData> future = new CompletableFuture<>();
+        ScheduledFuture<?> deadline;
+
+        PendingRequest(int deviceId, long timeoutMillis) {
+            this.deviceId = deviceId;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /**
+     * @param master The AMASP master (already connected with begin()).
+     * @param maxPerDevice Maximum number of outstanding requests per device.
+     * @param maxTotal Maximum number of outstanding requests.
+     */
+    public AMASPAsyncMaster(AMASPSerialMaster master, int maxPerDevice, int maxTotal) {
+        this(new AMASPReader(master), maxPerDevice, maxTotal);
+    }
+
+    /**
+     * @param reader The reader of an AMASP master, which may be shared with
+     * other listeners.
+     * @param maxPerDevice Maximum number of outstanding requests per device.
+     * @param maxTotal Maximum number of outstanding requests.
+     */
+    public AMASPAsyncMaster(AMASPReader reader, int maxPerDevice, int maxTotal) {
+        this(reader, maxPerDevice, maxTotal, null);
+    }
+
+    /**
+     * @param reader The reader of an AMASP master, which may be shared with
+     * other listeners.
+     * @param maxPerDevice Maximum number of outstanding requests per device.
+     * @param maxTotal Maximum number of outstanding requests.
+     * @param timer The scheduler of the request deadlines, which may be
+     * shared by several masters and is not shut down by stop(), or null to
+     * use an own timer thread.
+     */
+    public AMASPAsyncMaster(AMASPReader reader, int maxPerDevice, int maxTotal, ScheduledExecutorService timer) {
+        if (!(reader.getSerial() instanceof AMASPSerialMaster)) {
+            throw new IllegalArgumentException("The reader must read an AMASP master");
+        }
+        if (maxPerDevice < 1 || maxTotal < 1) {
+            throw new IllegalArgumentException("The outstanding request limits must be positive");
+        }
+        this.master = (AMASPSerialMaster) reader.getSerial();
+        this.reader = reader;
+        this.maxPerDevice = maxPerDevice;
+        this.maxTotal = maxTotal;
+        this.ownTimer = (timer == null);
+        this.timer = ownTimer ? newTimer() : timer;
+    }
+
+    private static ScheduledExecutorService newTimer() {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AMASPAsyncMaster-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return The AMASP master.
+     */
+    public AMASPSerialMaster getMaster() {
+        return master;
+    }
+
+    /**
+     * @return The background reader.
+     */
+    public AMASPReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Sets the deadline used by requestAsync(int, byte[]).
+     *
+     * @param timeoutMillis The request timeout in milliseconds.
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * @return The deadline used by requestAsync(int, byte[]) in milliseconds.
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * Registers this object in the reader and starts it.
+     */
+    public void start() {
+        restartTimer();
+        reader.addListener(this);
+        reader.start();
+    }
+
+    /**
+     * Registers this object in the reader and starts it in a thread of an
+     * executor.
+     *
+     * @param executor The executor which runs the reading loop.
+     */
+    public void start(Executor executor) {
+        restartTimer();
+        reader.addListener(this);
+        reader.start(executor);
+    }
+
+    private synchronized void restartTimer() {
+        if (ownTimer && timer.isShutdown()) {
+            timer = newTimer();
+        }
+    }
+
+    /**
+     * Unregisters this object from the reader, stops the reader, cancels
+     * the outstanding requests and stops the own timer thread.
+     */
+    public void stop() {
+        reader.removeListener(this);
+        reader.stop();
+        synchronized (this) {
+            for (int i = 0; i < DEVICES; i++) {
+                if (pending[i] != null) {
+                    for (PendingRequest request : pending[i]) {
+                        finish(request);
+                        request.future.completeExceptionally(new CancellationException("AMASP master stopped"));
+                    }
+                    pending[i].clear();
+                }
+            }
+            outstanding = 0;
+            if (ownTimer) {
+                timer.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return The number of outstanding requests.
+     */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Waits until the device has no outstanding request.
+     *
+     * @param deviceId Id of the device in slave (0x000 to 0xFFF).
+     * @param timeoutMillis The maximum waiting time in milliseconds.
+     * @return False if the waiting time elapsed first.
+     */
+    synchronized boolean awaitIdle(int deviceId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (pending[deviceId] != null && !pending[deviceId].isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Sends a MRP packet with the default deadline.
+     *
+     * @param deviceId Id of the requested device in slave (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> requestAsync(int deviceId, byte[] message) {
+        return requestAsync(deviceId, message, message.length, defaultTimeout);
+    }
+
+    /**
+     * Sends a MRP packet.
+     *
+     * The future fails with TimeoutException when the deadline expires and
+     * with RejectedExecutionException when an outstanding request limit was
+     * reached (the packet is not sent in that case).
+     *
+     * @param deviceId Id of the requested device in slave (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @param timeoutMillis The request deadline in milliseconds.
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> requestAsync(int deviceId, byte[] message, int msgLength, long timeoutMillis) {
+        if (deviceId < 0 || deviceId >= DEVICES) {
+            throw new IllegalArgumentException("Invalid device ID: " + deviceId);
+        }
+        PendingRequest request = new PendingRequest(deviceId, timeoutMillis);
+        synchronized (this) {
+            ArrayDeque<PendingRequest> queue = pending[deviceId];
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                pending[deviceId] = queue;
+            }
+            if (outstanding >= maxTotal || queue.size() >= maxPerDevice) {
+                request.future.completeExceptionally(new RejectedExecutionException("Too many outstanding requests"));
+                return request.future;
+            }
+            try {
+                request.deadline = timer.schedule(() -> expire(request), timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                request.future.completeExceptionally(e); //Stopped
+                return request.future;
+            }
+            //Registered before sending, the response may arrive at once
+            queue.addLast(request);
+            outstanding++;
+        }
+        try {
+            synchronized (sendLock) {
+                master.sendRequest(deviceId, message, msgLength);
+            }
+        } catch (RuntimeException e) {
+            if (remove(request)) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        return request.future;
+    }
+
+    /**
+     * Matches the SRP and CEP packets to the outstanding requests.
+     */
+    @Override
+    public void packetReceived(PacketData packet) {
+        if (packet.getType() != PacketType.SRP && packet.getType() != PacketType.CEP) {
+            return;
+        }
+        PendingRequest request;
+        synchronized (this) {
+            ArrayDeque<PendingRequest> queue = pending[packet.getDeviceId()];
+            request = (queue != null) ? queue.pollFirst() : null;
+            if (request == null) {
+                return; //Unexpected or very late response
+            }
+            outstanding--;
+            finish(request);
+        }
+        request.future.complete(packet);
+    }
+
+    private void expire(PendingRequest request) {
+        if (remove(request)) {
+            AMASPErrorCheckPolicy policy = master.getErrorCheckPolicy();
+            if (policy != null) {
+                policy.requestFailed(request.deviceId);
+            }
+            request.future.completeExceptionally(new TimeoutException("No response from device " + request.deviceId));
+        }
+    }
+
+    private synchronized boolean remove(PendingRequest request) {
+        if (pending[request.deviceId].remove(request)) {
+            outstanding--;
+            finish(request);
+            return true;
+        }
+        return false;
+    }
+
+    private void finish(PendingRequest request) {
+        notifyAll(); //awaitIdle()
+        if (request.deadline != null) {
+            request.deadline.cancel(false);
+        }
+    }
+}
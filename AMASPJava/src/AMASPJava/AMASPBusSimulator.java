@@ -0,0 +1,492 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless simulation of an AMASP bus: a master polling many virtual slave
+ * devices over a half-duplex line.
+ *
+ * The line carries the bytes between two memory transports, holding each
+ * write for its transmission time at the simulated baud rate (8N1, one write
+ * at a time in either direction) and injecting bit flips, dropped bytes and
+ * truncated packets. The virtual slaves answer after a configurable latency.
+ * run() drives the requests from the master and reports the achieved packet
+ * rate and the latency percentiles.
+ *
+ * It can be run from the command line, e.g.:
+ * java -cp AMASPJavaLib.jar AMASPJava.AMASPBusSimulator baud=115200 slaves=64
+ * seconds=10 flip=0.0001
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPBusSimulator {
+
+    private final long byteTimeNanos;
+    private final AMASPMemoryTransport masterSide = new AMASPMemoryTransport(65536);
+    private final AMASPMemoryTransport slaveSide = new AMASPMemoryTransport(65536);
+    private final AMASPSerialMaster master = new AMASPSerialMaster();
+    private final AMASPSerialSlave slave = new AMASPSerialSlave();
+    private final AMASPMetrics metrics = new AMASPMetrics();
+    private final long[] slaveLatencyNanos = new long[0x1000];
+    private final Random random = new Random();
+    private final Object line = new Object();
+    private long lineFreeNanos = 0;
+    private volatile double bitFlipRate = 0;
+    private volatile double dropRate = 0;
+    private volatile double truncateRate = 0;
+    private volatile int responseLength = 16;
+    private volatile long timeoutMarginNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private int slaveCount = 0;
+    private long maxSlaveLatencyNanos = 0;
+    private volatile boolean running = false;
+
+    /**
+     * Simulation results.
+     */
+    public static final class Report {
+
+        private final long requests;
+        private final long responses;
+        private final long timeouts;
+        private final double seconds;
+        private final long[] latencies;
+        private final long decoderErrors;
+
+        Report(long requests, long responses, long timeouts, double seconds, long[] latencies, long decoderErrors) {
+            this.requests = requests;
+            this.responses = responses;
+            this.timeouts = timeouts;
+            this.seconds = seconds;
+            this.latencies = latencies;
+            this.decoderErrors = decoderErrors;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getResponses() {
+            return responses;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * @return The number of packets rejected by the decoders.
+         */
+        public long getDecoderErrors() {
+            return decoderErrors;
+        }
+
+        /**
+         * @return The packets (requests and responses) per second.
+         */
+        public double getFramesPerSecond() {
+            return (requests + responses) / seconds;
+        }
+
+        /**
+         * @return The answered requests per second.
+         */
+        public double getTransactionsPerSecond() {
+            return responses / seconds;
+        }
+
+        /**
+         * @param percentile The percentile (0 to 100).
+         * @return The request to response latency in microseconds.
+         */
+        public double getLatencyMicros(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(latencies.length * percentile / 100.0) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d responses=%d timeouts=%d decoderErrors=%d%n"
+                    + "frames/s=%.1f transactions/s=%.1f%n"
+                    + "latency us: p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    requests, responses, timeouts, decoderErrors,
+                    getFramesPerSecond(), getTransactionsPerSecond(),
+                    getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9), getLatencyMicros(100));
+        }
+    }
+
+    /**
+     * @param baudRate The simulated baud rate (8N1 framing).
+     */
+    public AMASPBusSimulator(int baudRate) {
+        this.byteTimeNanos = TimeUnit.SECONDS.toNanos(10) / baudRate;
+        masterSide.setByteTimeNanos(byteTimeNanos);
+        slaveSide.setByteTimeNanos(byteTimeNanos);
+        master.begin(masterSide);
+        slave.begin(slaveSide);
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        master.setMetrics(metrics);
+        slave.setMetrics(metrics);
+    }
+
+    /**
+     * @return The simulated master, e.g. to set its error checking algorithm.
+     */
+    public AMASPSerialMaster getMaster() {
+        return master;
+    }
+
+    /**
+     * @return The slave which answers for the virtual devices.
+     */
+    public AMASPSerialSlave getSlave() {
+        return slave;
+    }
+
+    /**
+     * @return The metrics of the master and the slave.
+     */
+    public AMASPMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the line noise.
+     *
+     * @param bitFlipRate The probability of a flipped bit in each byte.
+     * @param dropRate The probability of each byte being lost.
+     * @param truncateRate The probability of each packet being cut short.
+     */
+    public void setNoise(double bitFlipRate, double dropRate, double truncateRate) {
+        this.bitFlipRate = bitFlipRate;
+        this.dropRate = dropRate;
+        this.truncateRate = truncateRate;
+    }
+
+    /**
+     * @param responseLength The message length of the slave responses.
+     */
+    public void setResponseLength(int responseLength) {
+        this.responseLength = responseLength;
+    }
+
+    /**
+     * Sets the time added to the response timeout of the master, over the
+     * transmission time and the slave latency (covers the scheduling jitter
+     * of the simulation threads).
+     *
+     * @param marginMicros The margin in microseconds (5 ms by default).
+     */
+    public void setTimeoutMarginMicros(long marginMicros) {
+        this.timeoutMarginNanos = TimeUnit.MICROSECONDS.toNanos(marginMicros);
+    }
+
+    /**
+     * Adds virtual slave devices with consecutive IDs.
+     *
+     * @param firstId Id of the first device.
+     * @param count The number of devices.
+     * @param latencyMicros The time each device takes to answer in
+     * microseconds.
+     */
+    public void addSlaves(int firstId, int count, long latencyMicros) {
+        for (int id = firstId; id < firstId + count; id++) {
+            if (slaveLatencyNanos[id] == 0) {
+                slaveCount++;
+            }
+            slaveLatencyNanos[id] = Math.max(1, TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+            maxSlaveLatencyNanos = Math.max(maxSlaveLatencyNanos, slaveLatencyNanos[id]);
+        }
+    }
+
+    /**
+     * Runs the simulation: the master requests the devices in turn, waiting
+     * each response up to its transmission time plus the slave latency and a
+     * margin (see setTimeoutMarginMicros()).
+     *
+     * @param durationMillis The simulation time in milliseconds.
+     * @param requestLength The message length of the requests.
+     * @param requestsPerSecond The offered load or 0 to send the requests
+     * back to back.
+     * @return The results.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public Report run(long durationMillis, int requestLength, double requestsPerSecond) throws InterruptedException {
+        int[] devices = new int[slaveCount];
+        for (int id = 0, n = 0; id < slaveLatencyNanos.length; id++) {
+            if (slaveLatencyNanos[id] != 0) {
+                devices[n++] = id;
+            }
+        }
+        if (devices.length == 0) {
+            throw new IllegalStateException("No slave device");
+        }
+        byte[] request = new byte[requestLength];
+        Arrays.fill(request, (byte) 'R');
+        long timeout = (requestLength + responseLength + 2L * AMASPFrameEncoder.DATA_OVERHEAD) * byteTimeNanos
+                + maxSlaveLatencyNanos + timeoutMarginNanos;
+        long interval = (requestsPerSecond > 0) ? (long) (1e9 / requestsPerSecond) : 0;
+        long[] latencies = new long[1024];
+        long requests = 0;
+        long responses = 0;
+        long timeouts = 0;
+
+        running = true;
+        Thread downlink = startLine("AMASPBus-downlink", masterSide.getPeer(), slaveSide.getPeer());
+        Thread uplink = startLine("AMASPBus-uplink", slaveSide.getPeer(), masterSide.getPeer());
+        Thread slaves = new Thread(this::serveSlaves, "AMASPBus-slaves");
+        slaves.setDaemon(true);
+        slaves.start();
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long next = start;
+        try {
+            for (int i = 0; System.nanoTime() - end < 0; i = (i + 1) % devices.length) {
+                if (interval > 0) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    next += interval;
+                }
+                int deviceId = devices[i];
+                long sent = System.nanoTime();
+                master.sendRequest(deviceId, request, requestLength);
+                requests++;
+                if (awaitResponse(deviceId, sent + timeout)) {
+                    if (responses == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                    }
+                    latencies[(int) responses++] = System.nanoTime() - sent;
+                } else {
+                    timeouts++;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            running = false;
+            downlink.interrupt();
+            uplink.interrupt();
+            slaves.interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] sorted = Arrays.copyOf(latencies, (int) responses);
+        Arrays.sort(sorted);
+        long decoderErrors = 0;
+        for (AMASPMetrics.DecoderError error : AMASPMetrics.DecoderError.values()) {
+            decoderErrors += metrics.getDecoderErrorCount(error);
+        }
+        return new Report(requests, responses, timeouts, seconds, sorted, decoderErrors);
+    }
+
+    private boolean awaitResponse(int deviceId, long deadline) throws InterruptedException {
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !master.waitForData(remaining)) {
+                return false;
+            }
+            PacketData packet = master.readPacket();
+            if (packet.getType() == PacketType.SRP && packet.getDeviceId() == deviceId) {
+                return true;
+            }
+        }
+    }
+
+    private void serveSlaves() {
+        byte[] response = new byte[AMASPSerial.MSG_MAX_SIZE];
+        Arrays.fill(response, (byte) 'S');
+        while (running) {
+            PacketData packet = slave.readPacket();
+            if (packet.getType() != PacketType.MRP) {
+                continue;
+            }
+            long latency = slaveLatencyNanos[packet.getDeviceId()];
+            if (latency == 0) {
+                continue;
+            }
+            LockSupport.parkNanos(latency);
+            slave.sendResponse(packet.getDeviceId(), response, responseLength);
+        }
+    }
+
+    private Thread startLine(String name, AMASPMemoryTransport from, AMASPMemoryTransport to) {
+        Thread t = new Thread(() -> transmit(from, to), name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Moves the written bytes across the line, one write at a time.
+     */
+    private void transmit(AMASPMemoryTransport from, AMASPMemoryTransport to) {
+        byte[] chunk = new byte[AMASPSerial.PKTMAXSIZE];
+        try {
+            while (running) {
+                if (!from.awaitData(TimeUnit.MILLISECONDS.toNanos(100))) {
+                    continue;
+                }
+                int n = from.read(chunk, chunk.length);
+                if (n <= 0) {
+                    continue;
+                }
+                long done;
+                synchronized (line) {
+                    //Half-duplex: the transmission starts when the line is free
+                    long begin = Math.max(System.nanoTime(), lineFreeNanos);
+                    lineFreeNanos = begin + n * byteTimeNanos;
+                    done = lineFreeNanos;
+                }
+                for (long wait = done - System.nanoTime(); wait > 0; wait = done - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                n = addNoise(chunk, n);
+                if (n > 0) {
+                    to.write(chunk, n);
+                }
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        }
+    }
+
+    private int addNoise(byte[] chunk, int length) {
+        if (truncateRate > 0 && random.nextDouble() < truncateRate) {
+            length = random.nextInt(length);
+        }
+        if (bitFlipRate == 0 && dropRate == 0) {
+            return length;
+        }
+        int out = 0;
+        for (int i = 0; i < length; i++) {
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                continue;
+            }
+            byte b = chunk[i];
+            if (bitFlipRate > 0 && random.nextDouble() < bitFlipRate) {
+                b ^= 1 << random.nextInt(8);
+            }
+            chunk[out++] = b;
+        }
+        return out;
+    }
+
+    /**
+     * Runs a simulation from the command line arguments (name=value): baud
+     * (115200), slaves (32), latency in microseconds (500), seconds (5),
+     * request and response message lengths (8 and 16), rate in requests per
+     * second (0, back to back), flip, drop and truncate rates (0), eca
+     * (CRC16, or adaptive to use an AMASPErrorCheckPolicy on both sides) and
+     * the timeout margin in microseconds (5000).
+     *
+     * @param args The arguments.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int baud = 115200;
+        int slaves = 32;
+        long latency = 500;
+        double seconds = 5;
+        int request = 8;
+        int response = 16;
+        double rate = 0;
+        double flip = 0;
+        double drop = 0;
+        double truncate = 0;
+        AMASPSerial.ErrorCheckType eca = AMASPSerial.ErrorCheckType.CRC16;
+        AMASPErrorCheckPolicy policy = null;
+        long margin = 5000;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = (kv.length > 1) ? kv[1] : "";
+            switch (kv[0]) {
+                case "baud":
+                    baud = Integer.parseInt(value);
+                    break;
+                case "slaves":
+                    slaves = Integer.parseInt(value);
+                    break;
+                case "latency":
+                    latency = Long.parseLong(value);
+                    break;
+                case "seconds":
+                    seconds = Double.parseDouble(value);
+                    break;
+                case "request":
+                    request = Integer.parseInt(value);
+                    break;
+                case "response":
+                    response = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "flip":
+                    flip = Double.parseDouble(value);
+                    break;
+                case "drop":
+                    drop = Double.parseDouble(value);
+                    break;
+                case "truncate":
+                    truncate = Double.parseDouble(value);
+                    break;
+                case "eca":
+                    if (value.equals("adaptive")) {
+                        policy = new AMASPErrorCheckPolicy();
+                    } else {
+                        eca = AMASPSerial.ErrorCheckType.valueOf(value);
+                    }
+                    break;
+                case "margin":
+                    margin = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + arg);
+                    return;
+            }
+        }
+
+        AMASPBusSimulator simulator = new AMASPBusSimulator(baud);
+        simulator.getMaster().setErrorCheckType(eca);
+        simulator.getSlave().setErrorCheckType(eca);
+        simulator.getMaster().setErrorCheckPolicy(policy);
+        simulator.getSlave().setErrorCheckPolicy(policy);
+        simulator.setNoise(flip, drop, truncate);
+        simulator.setResponseLength(response);
+        simulator.setTimeoutMarginMicros(margin);
+        simulator.addSlaves(1, slaves, latency);
+        System.out.printf("baud=%d slaves=%d latency=%dus request=%d response=%d eca=%s flip=%g drop=%g truncate=%g%n",
+                baud, slaves, latency, request, response, (policy != null) ? "adaptive" : eca, flip, drop, truncate);
+        System.out.println(simulator.run((long) (seconds * 1000), request, rate));
+        if (policy != null) {
+            System.out.printf("error check upgrades=%d downgrades=%d%n", policy.getUpgradeCount(), policy.getDowngradeCount());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single producer, single consumer byte ring buffer.
+ *
+ * One thread at a time may write and one thread at a time may read. The
+ * consumer may wait for data and the producer for free space; the waiting
+ * threads are parked and unparked by the other side.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPByteRing {
+
+    private final byte[] buffer;
+    private final int mask;
+    //Read and write positions (never wrapped)
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity The buffer capacity (rounded up to a power of two).
+     */
+    AMASPByteRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return The number of bytes to be read, or -1 if the ring is closed and
+     * empty.
+     */
+    int available() {
+        int n = (int) (tail.get() - head.get());
+        return (n == 0 && closed) ? -1 : n;
+    }
+
+    /**
+     * Reads the available bytes, without waiting.
+     *
+     * @return The number of bytes read, or -1 if the ring is closed and empty.
+     */
+    int read(byte[] dst, int offset, int length) {
+        long h = head.get();
+        int n = Math.min(length, (int) (tail.get() - h));
+        if (n <= 0) {
+            return closed ? -1 : 0;
+        }
+        int pos = (int) h & mask;
+        int first = Math.min(n, buffer.length - pos);
+        System.arraycopy(buffer, pos, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        head.set(h + n);
+        Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+        return n;
+    }
+
+    /**
+     * Writes bytes, waiting for free space when the ring is full.
+     *
+     * @return The number of bytes written (less than length if the writing
+     * thread was interrupted), or -1 if the ring is closed.
+     */
+    int write(byte[] src, int offset, int length) {
+        int written = 0;
+        while (written < length) {
+            if (closed) {
+                return -1;
+            }
+            long t = tail.get();
+            int n = Math.min(length - written, buffer.length - (int) (t - head.get()));
+            if (n == 0) {
+                waitingWriter = Thread.currentThread();
+                if (buffer.length - (int) (tail.get() - head.get()) == 0 && !closed) {
+                    LockSupport.park(this);
+                }
+                waitingWriter = null;
+                if (Thread.currentThread().isInterrupted()) {
+                    return written;
+                }
+                continue;
+            }
+            int pos = (int) t & mask;
+            int first = Math.min(n, buffer.length - pos);
+            System.arraycopy(src, offset + written, buffer, pos, first);
+            System.arraycopy(src, offset + written + first, buffer, 0, n - first);
+            tail.set(t + n);
+            written += n;
+            Thread reader = waitingReader;
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Waits until there is free space for length bytes, so that a following
+     * write() of at most length bytes does not wait. Only called by the
+     * producer.
+     *
+     * @return False if the ring is closed, the writing thread was
+     * interrupted or length exceeds the capacity.
+     */
+    boolean awaitSpace(int length) {
+        if (length > buffer.length) {
+            return false;
+        }
+        try {
+            while (buffer.length - (int) (tail.get() - head.get()) < length) {
+                if (closed || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                waitingWriter = Thread.currentThread();
+                if (buffer.length - (int) (tail.get() - head.get()) < length && !closed) {
+                    LockSupport.park(this);
+                }
+            }
+            return !closed;
+        } finally {
+            waitingWriter = null;
+        }
+    }
+
+    /**
+     * Waits until there are bytes to be read or the ring is closed.
+     *
+     * @param timeoutNanos The maximum waiting time in nanoseconds.
+     * @return True if there are bytes to be read.
+     */
+    boolean awaitData(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        try {
+            while (tail.get() == head.get()) {
+                long remaining = deadline - System.nanoTime();
+                if (closed || remaining <= 0) {
+                    return false;
+                }
+                waitingReader = Thread.currentThread();
+                if (tail.get() == head.get()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waitingReader = null;
+        }
+    }
+
+    /**
+     * Closes the ring, waking up the waiting threads. The bytes already
+     * written can still be read.
+     */
+    void close() {
+        closed = true;
+        Thread t = waitingReader;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        t = waitingWriter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+}
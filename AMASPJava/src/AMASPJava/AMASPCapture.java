@@ -0,0 +1,328 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Capture of the raw packets sent and of the exact bytes received by AMASP
+ * objects (see AMASPSerial.setCapture()) to segmented memory-mapped files.
+ * The received bytes are recorded as read from the transport, before
+ * decoding, so noise and rejected packets are kept for diagnostics; those
+ * records have no packet type. Each packet decoded from them is recorded as
+ * well, after the bytes which completed it, with its type and device ID.
+ *
+ * The I/O threads only copy the packet into a bounded queue (the packet is
+ * dropped and counted if the queue is full), a daemon writer thread appends
+ * the records to the current segment file. The segments are named
+ * prefix-NNNNNN.amaspcap and read back with AMASPReplayer; start() deletes
+ * the segments left by an earlier capture with the same prefix.
+ *
+ * Segment layout (big endian): "AMASPCAP", version (int), capture start time
+ * (long, epoch milliseconds), followed by the records: record length (int,
+ * 0 ends the segment), time since the capture start (long, nanoseconds),
+ * direction (byte), packet type (byte), device ID (short) and the raw packet.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPCapture {
+
+    /**
+     * Direction of a captured packet.
+     */
+    public enum Direction {
+        Received, Sent
+    }
+
+    static final byte[] MAGIC = {'A', 'M', 'A', 'S', 'P', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 20;
+    static final int RECORD_HEADER_SIZE = 16;
+    static final String SUFFIX = ".amaspcap";
+
+    private static final Record END = new Record(0, Direction.Received, null, 0, new byte[0]);
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final BlockingQueue<Record> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder captured = new LongAdder();
+    private volatile boolean running = false;
+    //Threads inside capture(), waited by stop() so no record follows END
+    private final AtomicInteger capturing = new AtomicInteger();
+    private long startNanos;
+    private long startMillis;
+    private Thread writer;
+    private volatile IOException failure;
+
+    //Writer thread state
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+
+    /**
+     * A captured packet.
+     */
+    public static final class Record {
+
+        private final long timeNanos;
+        private final Direction direction;
+        private final PacketType type;
+        private final int deviceId;
+        private final byte[] frame;
+
+        Record(long timeNanos, Direction direction, PacketType type, int deviceId, byte[] frame) {
+            this.timeNanos = timeNanos;
+            this.direction = direction;
+            this.type = type;
+            this.deviceId = deviceId;
+            this.frame = frame;
+        }
+
+        /**
+         * @return The time since the capture start in nanoseconds.
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return The packet type (MRP, SRP, SIP or CEP) or null for raw
+         * received bytes.
+         */
+        public PacketType getType() {
+            return type;
+        }
+
+        public int getDeviceId() {
+            return deviceId;
+        }
+
+        /**
+         * @return The raw packet (sent or decoded) or received bytes.
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+    }
+
+    /**
+     * @param directory The directory of the segment files.
+     * @param prefix The name prefix of the segment files.
+     * @param segmentSize The size of each segment file in bytes (at least 64
+     * KB).
+     * @param queueCapacity The maximum number of packets waiting to be
+     * written.
+     */
+    public AMASPCapture(File directory, String prefix, int segmentSize, int queueCapacity) {
+        if (segmentSize < 65536) {
+            throw new IllegalArgumentException("The segment size must be at least 64 KB");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Starts the capture in a new daemon writer thread. The first segment is
+     * created in the calling thread, after deleting the segments of an
+     * earlier capture with the same prefix.
+     *
+     * @throws IOException If the first segment could not be created or an
+     * earlier segment could not be deleted.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        segmentIndex = 0;
+        failure = null;
+        deleteSegments();
+        openSegment();
+        running = true;
+        writer = new Thread(this::writeLoop, "AMASPCapture-" + prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the capture, writing the queued packets before closing the
+     * current segment.
+     *
+     * @throws InterruptedException If interrupted while waiting the writer.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        while (capturing.get() > 0) {
+            Thread.yield();
+        }
+        queue.put(END);
+        writer.join();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The number of packets written or queued.
+     */
+    public long getCapturedCount() {
+        return captured.sum();
+    }
+
+    /**
+     * @return The number of packets dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The error which stopped the writer or null if none.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Queues a packet to be written, never blocks.
+     *
+     * @param direction The packet direction.
+     * @param type The packet type (null for raw received bytes).
+     * @param deviceId Id of the device.
+     * @param data The buffer which holds the packet.
+     * @param offset The packet position in data.
+     * @param length The packet length.
+     * @return True if the packet was queued or false if it was dropped.
+     */
+    public boolean capture(Direction direction, PacketType type, int deviceId, byte[] data, int offset, int length) {
+        capturing.incrementAndGet();
+        try {
+            if (!running) {
+                return false;
+            }
+            byte[] frame = new byte[length];
+            System.arraycopy(data, offset, frame, 0, length);
+            if (queue.offer(new Record(System.nanoTime() - startNanos, direction, type, deviceId, frame))) {
+                captured.increment();
+                return true;
+            }
+            dropped.increment();
+            return false;
+        } finally {
+            capturing.decrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Record record;
+            while ((record = queue.take()) != END) {
+                write(record);
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        } catch (IOException e) {
+            failure = e;
+            running = false;
+        }
+        closeSegment();
+    }
+
+    private void write(Record record) throws IOException {
+        int size = RECORD_HEADER_SIZE + record.frame.length;
+        //Keeping room to the end mark
+        if (segment.remaining() < size + 4) {
+            closeSegment();
+            segmentIndex++;
+            openSegment();
+        }
+        segment.putInt(record.frame.length);
+        segment.putLong(record.timeNanos);
+        segment.put((byte) record.direction.ordinal());
+        segment.put((byte) (record.type == null ? -1 : record.type.ordinal()));
+        segment.putShort((short) record.deviceId);
+        segment.put(record.frame);
+    }
+
+    private void openSegment() throws IOException {
+        File file = segmentFile(directory, prefix, segmentIndex);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.order(ByteOrder.BIG_ENDIAN);
+        segment.put(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(startMillis);
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        if (segment.remaining() >= 4) {
+            segment.putInt(0);
+        }
+        segment.force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        segment = null;
+        channel = null;
+    }
+
+    /**
+     * Deletes the segments of this prefix, which AMASPReplayer would read
+     * after the ones of the new capture.
+     */
+    private void deleteSegments() throws IOException {
+        for (int i = 0; segmentFile(directory, prefix, i).exists(); i++) {
+            if (!segmentFile(directory, prefix, i).delete()) {
+                throw new IOException("Could not delete " + segmentFile(directory, prefix, i));
+            }
+        }
+    }
+
+    static File segmentFile(File directory, String prefix, int index) {
+        return new File(directory, String.format("%s-%06d%s", prefix, index, SUFFIX));
+    }
+}
@@ -0,0 +1,205 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background reader of an AMASP master which separates the interrupts from
+ * the request/response exchanges.
+ *
+ * The SIP and CEP packets are handed to the interrupt listeners in a
+ * dedicated executor, so they are dispatched as soon as they are decoded,
+ * whatever request is in flight and however long a listener takes. The SRP
+ * or CEP answer of the device being requested with request() is handed to
+ * the waiting thread. Every packet is also handed to the listeners of
+ * AMASPReader (in the reading thread).
+ *
+ * The requests are serialized: request() sends a MRP packet and waits for
+ * its answer while the other callers wait their turn (AMASPAsyncMaster keeps
+ * several requests in flight).
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPDemuxReader extends AMASPReader {
+
+    private static final int NO_DEVICE = -1;
+
+    private final AMASPSerialMaster master;
+    private final Executor interruptExecutor;
+    private final CopyOnWriteArrayList<PacketListener> interruptListeners = new CopyOnWriteArrayList<>();
+    private final LinkedBlockingQueue<PacketData> answers = new LinkedBlockingQueue<>();
+    private final Object requestLock = new Object();
+    //Device whose answer is awaited by request()
+    private volatile int awaitedDevice = NO_DEVICE;
+    private volatile long defaultTimeout = 1000;
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * Creates a reader which calls the interrupt listeners in its own
+     * maximum priority thread (ended after a minute without interrupts).
+     *
+     * @param master The AMASP master (already connected with begin()).
+     */
+    public AMASPDemuxReader(AMASPSerialMaster master) {
+        this(master, newInterruptExecutor());
+    }
+
+    /**
+     * @param master The AMASP master (already connected with begin()).
+     * @param interruptExecutor The executor which calls the interrupt
+     * listeners; a single thread one keeps the order of the interrupts.
+     */
+    public AMASPDemuxReader(AMASPSerialMaster master, Executor interruptExecutor) {
+        super(master);
+        this.master = master;
+        this.interruptExecutor = interruptExecutor;
+    }
+
+    private static Executor newInterruptExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "AMASPDemuxReader-interrupts");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Registers a listener of the SIP and CEP packets, called in the
+     * interrupt executor. An exception thrown by the listener is kept (see
+     * getLastFailure()) and the other listeners are still called.
+     *
+     * @param listener The listener.
+     */
+    public void addInterruptListener(PacketListener listener) {
+        interruptListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a listener of the SIP and CEP packets.
+     *
+     * @param listener The listener.
+     */
+    public void removeInterruptListener(PacketListener listener) {
+        interruptListeners.remove(listener);
+    }
+
+    /**
+     * Sets the answer timeout used by request(int, byte[], int).
+     *
+     * @param timeoutMillis The timeout in milliseconds (1000 by default).
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        this.defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * @return The answer timeout used by request(int, byte[], int) in
+     * milliseconds.
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * @return The last exception thrown by an interrupt listener or null if
+     * none.
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Sends a MRP packet and waits for the answer, with the default timeout.
+     *
+     * @param deviceId Id of the requested device in slave.
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @return The SRP or CEP packet of the device, or a packet of Timeout type.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public PacketData request(int deviceId, byte[] message, int msgLength) throws InterruptedException {
+        return request(deviceId, message, msgLength, defaultTimeout);
+    }
+
+    /**
+     * Sends a MRP packet and waits for the answer. The reader must be
+     * running.
+     *
+     * @param deviceId Id of the requested device in slave.
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @param timeoutMillis The answer timeout in milliseconds.
+     * @return The SRP or CEP packet of the device, or a packet of Timeout type.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public PacketData request(int deviceId, byte[] message, int msgLength, long timeoutMillis) throws InterruptedException {
+        synchronized (requestLock) {
+            //Late answers of previous requests
+            answers.clear();
+            //The ID as written in the header, as the answer carries it
+            awaitedDevice = AMASPHex.truncate(deviceId, 3);
+            try {
+                master.sendRequest(deviceId, message, msgLength);
+                PacketData answer = answers.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                return (answer != null) ? answer : master.timeoutPacket(deviceId);
+            } finally {
+                awaitedDevice = NO_DEVICE;
+            }
+        }
+    }
+
+    /**
+     * Hands the interrupts to the interrupt executor and the awaited answer
+     * to the requesting thread, then the packet to the reader listeners.
+     *
+     * @param packet The received packet.
+     */
+    @Override
+    protected void dispatch(PacketData packet) {
+        PacketType type = packet.getType();
+        if (type == PacketType.SIP || type == PacketType.CEP) {
+            if (!interruptListeners.isEmpty()) {
+                interruptExecutor.execute(() -> {
+                    for (PacketListener listener : interruptListeners) {
+                        //A failing listener must not skip the others
+                        try {
+                            listener.packetReceived(packet);
+                        } catch (RuntimeException e) {
+                            lastFailure = e;
+                        }
+                    }
+                });
+            }
+        }
+        if ((type == PacketType.SRP || type == PacketType.CEP) && packet.getDeviceId() == awaitedDevice) {
+            answers.offer(packet);
+        }
+        super.dispatch(packet);
+    }
+}
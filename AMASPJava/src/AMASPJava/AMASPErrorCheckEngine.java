@@ -0,0 +1,44 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+
+/**
+ * Engine which computes the error check data of the AMASP packets.
+ *
+ * Implementations must return the same values of the reference algorithms in
+ * AMASPSerial (including the sign extension of the data bytes), otherwise
+ * the packets will be rejected by the other computer.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public interface AMASPErrorCheckEngine {
+
+    /**
+     * Computes the error check data.
+     *
+     * @param eCheckType The error checking algorithm.
+     * @param data The packet bytes.
+     * @param offset The position of the first byte to be checked.
+     * @param dataLength The number of bytes to be checked.
+     * @return The error check data (0 to None).
+     */
+    int check(ErrorCheckType eCheckType, byte[] data, int offset, int dataLength);
+}
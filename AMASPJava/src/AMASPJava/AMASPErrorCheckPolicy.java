@@ -0,0 +1,237 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive choice of the error checking algorithm of the sent packets, per
+ * device (see AMASPSerial.setErrorCheckPolicy()).
+ *
+ * The algorithms are ordered from the cheapest to the strongest. Every device
+ * starts at the cheapest one and the policy counts, in windows of received
+ * packets, the packets of the device which failed the error check and its
+ * requests which were not answered. When the failures of a window exceed the
+ * upgrade rate the device goes to the next stronger algorithm at once; it
+ * only goes back to a cheaper one after a number of consecutive windows
+ * below the downgrade rate, so a link near the threshold does not flip at
+ * every window.
+ *
+ * The receivers accept any algorithm (the ECA digit travels in every
+ * packet), so the peers do not need to agree on a policy. The choice is read
+ * without locks on every sent packet.
+ *
+ * Note: only None and LRC16 validate messages with bytes above 0x7F (the
+ * other algorithms sign-extend them), so a policy for binary messages can
+ * only switch between those two, as in
+ * new AMASPErrorCheckPolicy(ErrorCheckType.None, ErrorCheckType.LRC16).
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPErrorCheckPolicy {
+
+    private static final int DEVICES = 0x1000;
+
+    private final ErrorCheckType[] levels;
+    private final AtomicReferenceArray<Link> links = new AtomicReferenceArray<>(DEVICES);
+    private final LongAdder upgrades = new LongAdder();
+    private final LongAdder downgrades = new LongAdder();
+    private volatile int windowSize = 100;
+    private volatile double upgradeRate = 0.01;
+    private volatile double downgradeRate = 0.001;
+    private volatile int downgradeWindows = 8;
+
+    /**
+     * Error statistics of a device.
+     */
+    private static final class Link {
+
+        volatile int level = 0;
+        int packets = 0;
+        int failures = 0;
+        int cleanWindows = 0;
+    }
+
+    /**
+     * Creates a policy which switches among XOR8, fletcher16 and CRC16. It is
+     * meant for ASCII messages only: none of these algorithms validates
+     * bytes above 0x7F.
+     */
+    public AMASPErrorCheckPolicy() {
+        this(ErrorCheckType.XOR8, ErrorCheckType.fletcher16, ErrorCheckType.CRC16);
+    }
+
+    /**
+     * @param levels The error checking algorithms, from the cheapest to the
+     * strongest.
+     */
+    public AMASPErrorCheckPolicy(ErrorCheckType... levels) {
+        if (levels.length == 0) {
+            throw new IllegalArgumentException("At least one error checking algorithm is required");
+        }
+        this.levels = levels.clone();
+    }
+
+    /**
+     * @param windowSize Number of packets of a device in each evaluation
+     * window (100 by default).
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("The window size must be positive");
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Sets the failure rates which switch the algorithm of a device.
+     *
+     * @param upgradeRate Failure rate above which the next stronger algorithm
+     * is used (0.01 by default).
+     * @param downgradeRate Failure rate at or below which a window counts as
+     * clean (0.001 by default).
+     * @param downgradeWindows Number of consecutive clean windows before the
+     * next cheaper algorithm is used (8 by default).
+     */
+    public void setThresholds(double upgradeRate, double downgradeRate, int downgradeWindows) {
+        if (downgradeRate > upgradeRate || downgradeWindows < 1) {
+            throw new IllegalArgumentException("Invalid thresholds");
+        }
+        this.upgradeRate = upgradeRate;
+        this.downgradeRate = downgradeRate;
+        this.downgradeWindows = downgradeWindows;
+    }
+
+    /**
+     * @param deviceId Id of the device (0x000 to 0xFFF, other values stand for
+     * the ID they are truncated to in the packet header).
+     * @return The error checking algorithm of the packets sent to or by the
+     * device.
+     */
+    public ErrorCheckType getErrorCheckType(int deviceId) {
+        Link link = links.get(link(deviceId));
+        return levels[(link != null) ? link.level : 0];
+    }
+
+    /**
+     * @return The number of switches to a stronger algorithm.
+     */
+    public long getUpgradeCount() {
+        return upgrades.sum();
+    }
+
+    /**
+     * @return The number of switches to a cheaper algorithm.
+     */
+    public long getDowngradeCount() {
+        return downgrades.sum();
+    }
+
+    /**
+     * Records a valid packet of a device.
+     *
+     * @param deviceId Id of the device.
+     */
+    public void packetReceived(int deviceId) {
+        record(deviceId, false);
+    }
+
+    /**
+     * Records a packet of a device which failed the error check.
+     *
+     * @param deviceId Id of the device.
+     */
+    public void errorCheckFailed(int deviceId) {
+        record(deviceId, true);
+    }
+
+    /**
+     * Records a request which was not answered and will be retried. Called by
+     * AMASPAsyncMaster and AMASPPollScheduler; applications which retry with
+     * readPacket() may call it as well.
+     *
+     * Note: a device which is off line counts as a noisy link, so its
+     * algorithm goes up to the strongest one until it answers again.
+     *
+     * @param deviceId Id of the device.
+     */
+    public void requestFailed(int deviceId) {
+        record(deviceId, true);
+    }
+
+    /**
+     * Returns all devices to the cheapest algorithm.
+     */
+    public void reset() {
+        for (int i = 0; i < DEVICES; i++) {
+            links.set(i, null);
+        }
+    }
+
+    /**
+     * @return The index of the link of the device: its ID as written in the
+     * packet header, so the packets sent with an ID out of range and their
+     * answers share one link.
+     */
+    private static int link(int deviceId) {
+        return AMASPHex.truncate(deviceId, 3);
+    }
+
+    private void record(int deviceId, boolean failed) {
+        int i = link(deviceId);
+        Link link = links.get(i);
+        if (link == null) {
+            links.compareAndSet(i, null, new Link());
+            link = links.get(i);
+        }
+        int window = windowSize;
+        synchronized (link) {
+            link.packets++;
+            if (failed) {
+                link.failures++;
+                if (link.failures > upgradeRate * window) {
+                    //Too many failures in this window, no need to wait its end
+                    if (link.level < levels.length - 1) {
+                        link.level++;
+                        upgrades.increment();
+                    }
+                    link.packets = 0;
+                    link.failures = 0;
+                    link.cleanWindows = 0;
+                    return;
+                }
+            }
+            if (link.packets >= window) {
+                if (link.failures <= downgradeRate * window) {
+                    if (++link.cleanWindows >= downgradeWindows && link.level > 0) {
+                        link.level--;
+                        downgrades.increment();
+                        link.cleanWindows = 0;
+                    }
+                } else {
+                    link.cleanWindows = 0;
+                }
+                link.packets = 0;
+                link.failures = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+/**
+ * Reactive stream interfaces with the same contract as
+ * java.util.concurrent.Flow (Java 9), for the Java 8 builds of the library.
+ * On newer Java versions they are adapted with a one line lambda per method.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public final class AMASPFlow {
+
+    private AMASPFlow() {
+    }
+
+    /**
+     * A producer of items received by subscribers.
+     *
+     * @param <T> The item type.
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Adds a subscriber, which receives onSubscribe() and then the items
+         * it requests.
+         *
+         * @param subscriber The subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. The methods of a subscriber are called in order,
+     * never concurrently.
+     *
+     * @param <T> The item type.
+     */
+    public interface Subscriber<T> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Adds demand for more items.
+         *
+         * @param n The number of items (greater than 0).
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of items.
+         */
+        void cancel();
+    }
+}
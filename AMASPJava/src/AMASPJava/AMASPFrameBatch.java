@@ -0,0 +1,212 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketType;
+
+/**
+ * Batch of AMASP packets which are encoded one after the other in a single
+ * buffer and sent with a single serial write.
+ *
+ * Optionally the batch is flushed automatically when its size reaches a
+ * threshold or when its oldest packet reaches a maximum delay. Both are only
+ * checked when a packet is added (there is no timer), so the last packets of
+ * a burst stay in the batch until flush() is called.
+ *
+ * The packets are counted by the metrics and recorded by the capture of the
+ * AMASP object when the batch is written.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPFrameBatch {
+
+    private final AMASPSerial serial;
+    private final byte[] buffer;
+    private int size = 0;
+    private int frameCount = 0;
+    private long firstFrameNanos;
+    private int flushSize;
+    private long flushDelayNanos = -1;
+    //Type, device and offset of the pending packets
+    private final PacketType[] frameTypes;
+    private final int[] frameDevices;
+    private final int[] frameOffsets;
+
+    /**
+     * @param serial The AMASP object which sends the packets.
+     * @param capacity The buffer size in bytes (at least one packet of
+     * maximum size).
+     */
+    public AMASPFrameBatch(AMASPSerial serial, int capacity) {
+        this.serial = serial;
+        this.buffer = new byte[Math.max(capacity, AMASPSerial.PKTMAXSIZE)];
+        this.flushSize = buffer.length;
+        int maxFrames = buffer.length / AMASPFrameEncoder.CODE_PACKET_SIZE;
+        this.frameTypes = new PacketType[maxFrames];
+        this.frameDevices = new int[maxFrames];
+        this.frameOffsets = new int[maxFrames];
+    }
+
+    /**
+     * Sets the automatic flush thresholds.
+     *
+     * @param sizeThreshold Size in bytes which flushes the batch (up to the
+     * buffer size).
+     * @param maxDelayMillis Age in milliseconds of the oldest pending packet
+     * which flushes the batch when the next packet is added, or a negative
+     * value to disable it.
+     */
+    public void setAutoFlush(int sizeThreshold, long maxDelayMillis) {
+        flushSize = Math.min(Math.max(sizeThreshold, 1), buffer.length);
+        flushDelayNanos = (maxDelayMillis < 0) ? -1 : maxDelayMillis * 1000000L;
+    }
+
+    /**
+     * Adds a MRP packet (the batch must belong to a master).
+     *
+     * @param deviceId Id of the requested device in slave.
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @return The error check data.
+     */
+    public int addRequest(int deviceId, byte[] message, int msgLength) {
+        if (!(serial instanceof AMASPSerialMaster)) {
+            throw new IllegalStateException("Only a master sends MRP packets");
+        }
+        return addData((byte) '?', deviceId, message, msgLength);
+    }
+
+    /**
+     * Adds a SRP packet (the batch must belong to a slave).
+     *
+     * @param deviceId Id of the slave device who answered.
+     * @param message The response message (in bytes) to be send.
+     * @param msgLength The message length.
+     * @return The error check data.
+     */
+    public int addResponse(int deviceId, byte[] message, int msgLength) {
+        if (!(serial instanceof AMASPSerialSlave)) {
+            throw new IllegalStateException("Only a slave sends SRP packets");
+        }
+        return addData((byte) '#', deviceId, message, msgLength);
+    }
+
+    /**
+     * Adds a SIP packet (the batch must belong to a slave).
+     *
+     * @param deviceId Id of the slave device who generated the interruption.
+     * @param interrupCode The code of the interruption (0 to 255).
+     * @return The error check data.
+     */
+    public int addInterruption(int deviceId, int interrupCode) {
+        if (!(serial instanceof AMASPSerialSlave)) {
+            throw new IllegalStateException("Only a slave sends SIP packets");
+        }
+        return addCode((byte) '!', deviceId, interrupCode);
+    }
+
+    /**
+     * Adds a CEP packet.
+     *
+     * @param deviceId Id of the target device in communication.
+     * @param errorCode The communication error code (0 to 255).
+     * @return The error check data.
+     */
+    public int addError(int deviceId, int errorCode) {
+        return addCode((byte) '~', deviceId, errorCode);
+    }
+
+    /**
+     * Sends the pending packets in a single write.
+     *
+     * @return The number of bytes written.
+     */
+    public int flush() {
+        int written = 0;
+        if (size > 0) {
+            written = serial.writeRaw(buffer, size);
+            for (int i = 0; i < frameCount; i++) {
+                int end = (i + 1 < frameCount) ? frameOffsets[i + 1] : size;
+                serial.packetSent(frameTypes[i], frameDevices[i], buffer, frameOffsets[i], end - frameOffsets[i]);
+            }
+            size = 0;
+            frameCount = 0;
+        }
+        return written;
+    }
+
+    /**
+     * @return The number of bytes pending in the batch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of packets pending in the batch.
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    private int addData(byte typeChar, int deviceId, byte[] message, int msgLength) {
+        int ecd;
+
+        if (message.length < msgLength) {
+            msgLength = message.length; //saturating
+        }
+        if (msgLength > AMASPSerial.MSG_MAX_SIZE) {
+            msgLength = AMASPSerial.MSG_MAX_SIZE; //saturating
+        }
+        reserve(AMASPFrameEncoder.DATA_OVERHEAD + msgLength);
+        ecd = serial.encoder.encodeData(buffer, size, typeChar, deviceId, message, 0, msgLength);
+        added(typeChar == '?' ? PacketType.MRP : PacketType.SRP, deviceId, AMASPFrameEncoder.DATA_OVERHEAD + msgLength);
+        return ecd;
+    }
+
+    private int addCode(byte typeChar, int deviceId, int code) {
+        int ecd;
+
+        reserve(AMASPFrameEncoder.CODE_PACKET_SIZE);
+        ecd = serial.encoder.encodeCode(buffer, size, typeChar, deviceId, code);
+        added(typeChar == '!' ? PacketType.SIP : PacketType.CEP, deviceId, AMASPFrameEncoder.CODE_PACKET_SIZE);
+        return ecd;
+    }
+
+    private void reserve(int length) {
+        if (size + length > buffer.length) {
+            flush();
+        }
+    }
+
+    private void added(PacketType type, int deviceId, int length) {
+        if (frameCount == 0) {
+            firstFrameNanos = System.nanoTime();
+        }
+        frameTypes[frameCount] = type;
+        frameDevices[frameCount] = deviceId;
+        frameOffsets[frameCount] = size;
+        size += length;
+        frameCount++;
+        if (size >= flushSize
+                || (flushDelayNanos >= 0 && System.nanoTime() - firstFrameNanos >= flushDelayNanos)) {
+            flush();
+        }
+    }
+}
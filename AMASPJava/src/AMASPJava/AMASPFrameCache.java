@@ -0,0 +1,210 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of encoded packets (see AMASPSerial.setFrameCache()).
+ *
+ * The packets are keyed by type, error checking algorithm, device ID and
+ * message or code, so a repeated request, response, error or interruption is
+ * sent as a single write of the cached bytes, without encoding nor error
+ * checking. A lookup hashes and compares the message, so the cache pays off
+ * for repeated packets; each cache should be used by AMASP objects with the
+ * same error check engine.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPFrameCache {
+
+    private final int capacity;
+    //Packets in access order (guarded by itself)
+    private final LinkedHashMap<Key, AMASPPreparedFrame> frames;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Packet identity. The lookup keys reference the message of the caller,
+     * the stored keys the message inside the encoded packet.
+     */
+    private static final class Key {
+
+        final byte typeChar;
+        final ErrorCheckType eca;
+        final int deviceId;
+        final byte[] data;
+        final int offset;
+        //Message length or code
+        final int codeLength;
+        final int hash;
+
+        Key(byte typeChar, ErrorCheckType eca, int deviceId, byte[] data, int offset, int codeLength) {
+            this.typeChar = typeChar;
+            this.eca = eca;
+            this.deviceId = deviceId;
+            this.data = data;
+            this.offset = offset;
+            this.codeLength = codeLength;
+            int h = ((typeChar * 31 + eca.ordinal()) * 31 + deviceId) * 31 + codeLength;
+            if (data != null) {
+                for (int i = offset; i < offset + codeLength; i++) {
+                    h = 31 * h + data[i];
+                }
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            if (hash != other.hash || typeChar != other.typeChar || eca != other.eca
+                    || deviceId != other.deviceId || codeLength != other.codeLength) {
+                return false;
+            }
+            if (data == null || other.data == null) {
+                return data == other.data;
+            }
+            for (int i = 0; i < codeLength; i++) {
+                if (data[offset + i] != other.data[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param capacity Maximum number of cached packets.
+     */
+    public AMASPFrameCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.frames = new LinkedHashMap<Key, AMASPPreparedFrame>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, AMASPPreparedFrame> eldest) {
+                if (size() > AMASPFrameCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the encoded MRP or SRP packet of a message, encoding and caching
+     * it if needed.
+     */
+    AMASPPreparedFrame getData(AMASPSerial owner, byte typeChar, PacketType type, int deviceId, byte[] message, int msgLength) {
+        Key key = new Key(typeChar, owner.errorCheckTypeFor(deviceId), deviceId, message, 0, msgLength);
+        AMASPPreparedFrame prepared;
+        synchronized (frames) {
+            prepared = frames.get(key);
+        }
+        if (prepared != null) {
+            hits.increment();
+            return prepared;
+        }
+        misses.increment();
+        prepared = owner.prepareData(typeChar, type, deviceId, message, 0, msgLength);
+        put(new Key(typeChar, prepared.getErrorCheckType(), deviceId, prepared.frame, AMASPPacket.MESSAGE_OFFSET, msgLength), prepared);
+        return prepared;
+    }
+
+    /**
+     * Gets the encoded CEP or SIP packet of a code, encoding and caching it if
+     * needed.
+     */
+    AMASPPreparedFrame getCode(AMASPSerial owner, byte typeChar, PacketType type, int deviceId, int code) {
+        Key key = new Key(typeChar, owner.errorCheckTypeFor(deviceId), deviceId, null, 0, code);
+        AMASPPreparedFrame prepared;
+        synchronized (frames) {
+            prepared = frames.get(key);
+        }
+        if (prepared != null) {
+            hits.increment();
+            return prepared;
+        }
+        misses.increment();
+        prepared = owner.prepareCode(typeChar, type, deviceId, code);
+        put(new Key(typeChar, prepared.getErrorCheckType(), deviceId, null, 0, code), prepared);
+        return prepared;
+    }
+
+    private void put(Key key, AMASPPreparedFrame prepared) {
+        synchronized (frames) {
+            frames.put(key, prepared);
+        }
+    }
+
+    /**
+     * Removes all cached packets.
+     */
+    public void clear() {
+        synchronized (frames) {
+            frames.clear();
+        }
+    }
+
+    /**
+     * @return The number of cached packets.
+     */
+    public int size() {
+        synchronized (frames) {
+            return frames.size();
+        }
+    }
+
+    /**
+     * @return The number of packets sent from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of packets encoded and added to the cache.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of packets removed to make room for others.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,376 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPMetrics.DecoderError;
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+
+/**
+ * Incremental AMASP packet decoder.
+ *
+ * The decoder is a state machine fed with byte chunks of any size (e.g. the
+ * result of a bulk serial read). The bytes of the current packet are kept in
+ * an internal buffer, so a packet may be split across any number of chunks.
+ * When a valid MRP, SRP, CEP or SIP packet is completed the decoding stops and
+ * the packet fields are available until the next call to decode().
+ *
+ * When a packet is rejected the bytes after its start char are not lost: they
+ * are rescanned from the next '!' (replay window) before any new byte, so a
+ * corrupted byte costs at most the packet it hit.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPFrameDecoder {
+
+    //Decoding states
+    private static final int HUNTING = 0;
+    private static final int HEADER = 1;
+    private static final int LENGTH = 2;
+    private static final int BODY = 3;
+
+    //Bytes up to the end of the device ID field
+    static final int HEADER_SIZE = 6;
+    //Bytes up to the end of the message length field (MRP and SRP)
+    static final int DATA_HEADER_SIZE = 9;
+    //Size of the CEP and SIP packets
+    static final int CODE_PACKET_SIZE = 14;
+
+    private final AMASPSerial owner;
+    private byte[] frame;
+    //Bytes of rejected packets to be decoded again
+    private final byte[] pending;
+    private int pendingPos;
+    private int pendingEnd;
+    //Position of the next start char in a rejected packet (0 if none)
+    private int resync;
+    private int state = HUNTING;
+    private int received;
+    private int expected;
+    private boolean frameReady;
+
+    private PacketType type;
+    private int deviceId;
+    private int codeLength;
+    private ErrorCheckType errorCheckType;
+    private int errorCheckData;
+
+    /**
+     * @param owner The AMASP object which provides the error checking
+     * algorithms.
+     */
+    AMASPFrameDecoder(AMASPSerial owner) {
+        this.owner = owner;
+        this.frame = new byte[AMASPSerial.PKTMAXSIZE];
+        this.pending = new byte[AMASPSerial.PKTMAXSIZE];
+    }
+
+    /**
+     * Feeds the decoder with a chunk of received bytes.
+     *
+     * The decoding stops as soon as a packet is completed or rejected, so the
+     * returned value may be smaller than the chunk length. The remaining
+     * bytes must be fed again after the packet fields are consumed. The bytes
+     * in the replay window are decoded first (see hasPending()), in that case
+     * no byte of the chunk may be consumed.
+     *
+     * @param data The received bytes.
+     * @param offset The chunk position in data.
+     * @param length The chunk length.
+     * @return The number of consumed bytes.
+     */
+    int decode(byte[] data, int offset, int length) {
+        int pos;
+
+        frameReady = false;
+        while (pendingPos < pendingEnd) {
+            pendingPos = scan(pending, pendingPos, pendingEnd);
+            if (frameReady) {
+                return 0;
+            }
+            replay();
+        }
+        pos = scan(data, offset, offset + length);
+        replay();
+        return pos - offset;
+    }
+
+    /**
+     * @return True if there are bytes of rejected packets to be decoded again.
+     */
+    boolean hasPending() {
+        return pendingPos < pendingEnd;
+    }
+
+    private int scan(byte[] data, int pos, int end) {
+        while (pos < end) {
+            if (state == HUNTING) {
+                //Looking for the packet start
+                int start = pos;
+                while (pos < end && data[pos] != '!') {
+                    pos++;
+                }
+                if (pos > start) {
+                    discarded(pos - start);
+                }
+                if (pos == end) {
+                    break;
+                }
+                frame[0] = data[pos++];
+                received = 1;
+                expected = HEADER_SIZE;
+                state = HEADER;
+                continue;
+            }
+            int n = Math.min(expected - received, end - pos);
+            System.arraycopy(data, pos, frame, received, n);
+            pos += n;
+            received += n;
+            if (received == expected) {
+                if (processStage()) {
+                    frameReady = true;
+                    break;
+                }
+                if (resync > 0) {
+                    break;
+                }
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Moves the bytes of the rejected packet from its next start char to the
+     * front of the replay window.
+     */
+    private void replay() {
+        if (resync == 0) {
+            return;
+        }
+        int leftover = received - resync;
+        int remaining = pendingEnd - pendingPos;
+        System.arraycopy(pending, pendingPos, pending, leftover, remaining);
+        System.arraycopy(frame, resync, pending, 0, leftover);
+        pendingPos = 0;
+        pendingEnd = leftover + remaining;
+        resync = 0;
+    }
+
+    /**
+     * Validates the completed decoding stage and sets the next one.
+     *
+     * @return True if a whole valid packet was recognized.
+     */
+    private boolean processStage() {
+        switch (state) {
+            case HEADER:
+                //Pre-check of ECA value
+                if (frame[2] < '0' || frame[2] > '5') {
+                    return reject(DecoderError.BadECA);
+                }
+                errorCheckType = ErrorCheckType.fromValue(frame[2] - '0');
+                //Extracting device ID
+                deviceId = AMASPHex.parse(frame, 3, 3);
+                if (deviceId < 0) {
+                    return reject(DecoderError.BadDeviceId);
+                }
+                switch (frame[1]) {
+                    case (byte) '?':
+                        type = PacketType.MRP;
+                        expected = DATA_HEADER_SIZE;
+                        state = LENGTH;
+                        break;
+                    case (byte) '#':
+                        type = PacketType.SRP;
+                        expected = DATA_HEADER_SIZE;
+                        state = LENGTH;
+                        break;
+                    case (byte) '~':
+                        type = PacketType.CEP;
+                        expected = CODE_PACKET_SIZE;
+                        state = BODY;
+                        break;
+                    case (byte) '!':
+                        type = PacketType.SIP;
+                        expected = CODE_PACKET_SIZE;
+                        state = BODY;
+                        break;
+                    default:
+                        return reject(DecoderError.BadType);
+                }
+                return false;
+
+            case LENGTH:
+                //Extracting message length
+                codeLength = AMASPHex.parse(frame, 6, 3);
+                if (codeLength < 0) {
+                    return reject(DecoderError.BadLength);
+                }
+                expected = codeLength + DATA_HEADER_SIZE + 6;
+                state = BODY;
+                return false;
+
+            case BODY:
+                if (type == PacketType.MRP || type == PacketType.SRP) {
+                    errorCheckData = AMASPHex.parse(frame, codeLength + 9, 4);
+                    //checking for errors
+                    if (errorCheckData < 0 || errorCheckData != owner.errorCheck(frame, codeLength + 9, errorCheckType)) {
+                        return reject(DecoderError.BadErrorCheck);
+                    }
+                    //End chars checking
+                    if (frame[codeLength + 13] != '\r' && frame[codeLength + 14] != '\n') {
+                        return reject(DecoderError.BadEnd);
+                    }
+                } else {
+                    errorCheckData = AMASPHex.parse(frame, 8, 4);
+                    if (errorCheckData < 0 || errorCheckData != owner.errorCheck(frame, 8, errorCheckType)) {
+                        return reject(DecoderError.BadErrorCheck);
+                    }
+                    //Extracting error/interruption code
+                    codeLength = AMASPHex.parse(frame, 6, 2);
+                    if (codeLength < 0) {
+                        return reject(DecoderError.BadCode);
+                    }
+                }
+                state = HUNTING;
+                return true;
+
+            default:
+                return reject(DecoderError.Exception);
+        }
+    }
+
+    private boolean reject(DecoderError error) {
+        state = HUNTING;
+        //Looking for another packet start inside the rejected bytes
+        resync = 0;
+        for (int i = 1; i < received; i++) {
+            if (frame[i] == '!') {
+                resync = i;
+                break;
+            }
+        }
+        AMASPMetrics metrics = owner.metrics;
+        if (metrics != null) {
+            metrics.decoderError(error, errorCheckType, resync > 0 ? resync : received);
+        }
+        AMASPErrorCheckPolicy policy = owner.errorCheckPolicy;
+        if (policy != null && error == DecoderError.BadErrorCheck) {
+            policy.errorCheckFailed(deviceId);
+        }
+        return false;
+    }
+
+    private void discarded(int bytes) {
+        AMASPMetrics metrics = owner.metrics;
+        if (metrics != null) {
+            metrics.discarded(bytes);
+        }
+    }
+
+    /**
+     * Discards any partially received packet and the replay window.
+     */
+    void reset() {
+        if (state != HUNTING) {
+            AMASPMetrics metrics = owner.metrics;
+            if (metrics != null) {
+                metrics.decoderError(DecoderError.Incomplete, errorCheckType, received);
+            }
+        }
+        state = HUNTING;
+        frameReady = false;
+        pendingPos = 0;
+        pendingEnd = 0;
+        resync = 0;
+    }
+
+    /**
+     * @return True if no packet is being received.
+     */
+    boolean isIdle() {
+        return state == HUNTING;
+    }
+
+    /**
+     * @return The size of the packet being received as known so far (the
+     * message length is only known after the length field is received).
+     */
+    int getExpectedSize() {
+        return state == HUNTING ? 0 : expected;
+    }
+
+    /**
+     * @return The size of the last packet.
+     */
+    int getFrameSize() {
+        return expected;
+    }
+
+    /**
+     * @return True if the last call to decode() completed a valid packet.
+     */
+    boolean isFrameReady() {
+        return frameReady;
+    }
+
+    /**
+     * @return The buffer which holds the last packet (starting at index 0).
+     */
+    byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * Exchanges the packet buffer, so the last packet can be handed over
+     * without being copied.
+     *
+     * @param replacement The new packet buffer (at least PKTMAXSIZE bytes).
+     * @return The buffer which holds the last packet.
+     */
+    byte[] swapFrame(byte[] replacement) {
+        byte[] last = frame;
+        frame = replacement;
+        return last;
+    }
+
+    PacketType getType() {
+        return type;
+    }
+
+    int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return The message length (MRP and SRP) or the error/interruption code
+     * (CEP and SIP).
+     */
+    int getCodeLength() {
+        return codeLength;
+    }
+
+    ErrorCheckType getErrorCheckType() {
+        return errorCheckType;
+    }
+
+    int getErrorCheckData() {
+        return errorCheckData;
+    }
+}
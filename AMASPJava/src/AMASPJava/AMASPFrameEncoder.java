@@ -0,0 +1,130 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+
+/**
+ * AMASP packet encoder.
+ *
+ * Writes the packets straight into a destination buffer, the hexadecimal
+ * fields through a lookup table and the message with a bulk copy, so no
+ * memory is allocated per packet. The error checking algorithm is the one set
+ * in the owner AMASP object.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPFrameEncoder {
+
+    //Packet size without the message (MRP and SRP)
+    static final int DATA_OVERHEAD = 15;
+    //Size of the CEP and SIP packets
+    static final int CODE_PACKET_SIZE = 14;
+
+    private final AMASPSerial owner;
+
+    /**
+     * @param owner The AMASP object which provides the error checking
+     * algorithm.
+     */
+    AMASPFrameEncoder(AMASPSerial owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Encodes a MRP or SRP packet (message length + 15 bytes).
+     *
+     * @param dst The destination buffer.
+     * @param offset The packet position in the destination buffer.
+     * @param typeChar The packet type character ('?' to MRP or '#' to SRP).
+     * @param deviceId Id of the device.
+     * @param message The message bytes.
+     * @param msgOffset The message position in the message buffer.
+     * @param msgLength The message length.
+     * @return The error check data.
+     */
+    int encodeData(byte[] dst, int offset, byte typeChar, int deviceId, byte[] message, int msgOffset, int msgLength) {
+        System.arraycopy(message, msgOffset, dst, offset + 9, msgLength);
+        return encodeData(dst, offset, typeChar, deviceId, msgLength);
+    }
+
+    /**
+     * Encodes a MRP or SRP packet whose message was already placed in the
+     * destination buffer (at the packet position + 9).
+     *
+     * @param dst The destination buffer.
+     * @param offset The packet position in the destination buffer.
+     * @param typeChar The packet type character ('?' to MRP or '#' to SRP).
+     * @param deviceId Id of the device.
+     * @param msgLength The message length.
+     * @return The error check data.
+     */
+    int encodeData(byte[] dst, int offset, byte typeChar, int deviceId, int msgLength) {
+        int ecd;
+        ErrorCheckType eca = owner.errorCheckTypeFor(deviceId);
+
+        writeHeader(dst, offset, typeChar, eca, deviceId);
+        //Message Length
+        AMASPHex.write(dst, offset + 6, msgLength, 3);
+        //Error checking
+        ecd = owner.errorCheck(dst, offset, msgLength + 9, eca);
+        writeTail(dst, offset + 9 + msgLength, ecd);
+        return ecd;
+    }
+
+    /**
+     * Encodes a CEP or SIP packet (14 bytes).
+     *
+     * @param dst The destination buffer.
+     * @param offset The packet position in the destination buffer.
+     * @param typeChar The packet type character ('~' to CEP or '!' to SIP).
+     * @param deviceId Id of the device.
+     * @param code The error or interruption code (0 to 255).
+     * @return The error check data.
+     */
+    int encodeCode(byte[] dst, int offset, byte typeChar, int deviceId, int code) {
+        int ecd;
+        ErrorCheckType eca = owner.errorCheckTypeFor(deviceId);
+
+        writeHeader(dst, offset, typeChar, eca, deviceId);
+        //Error/Interruption Code
+        AMASPHex.write(dst, offset + 6, code, 2);
+        //Error checking
+        ecd = owner.errorCheck(dst, offset, 8, eca);
+        writeTail(dst, offset + 8, ecd);
+        return ecd;
+    }
+
+    private void writeHeader(byte[] dst, int offset, byte typeChar, ErrorCheckType eca, int deviceId) {
+        //Packet Type
+        dst[offset] = (byte) '!';
+        dst[offset + 1] = typeChar;
+        //ECA
+        AMASPHex.write(dst, offset + 2, eca.ordinal(), 1);
+        //Device ID
+        AMASPHex.write(dst, offset + 3, deviceId, 3);
+    }
+
+    private void writeTail(byte[] dst, int offset, int ecd) {
+        AMASPHex.write(dst, offset, ecd, 4);
+        //Packet End
+        dst[offset + 4] = (byte) '\r';
+        dst[offset + 5] = (byte) '\n';
+    }
+}
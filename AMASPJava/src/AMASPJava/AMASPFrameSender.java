@@ -0,0 +1,223 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer of the concurrent send mode (see AMASPSerial.enableConcurrentSend()).
+ *
+ * The sending threads encode their packets into pooled buffers and hand them
+ * to lock-free multi producer, single consumer queues. A single writer thread
+ * drains the queues into the transport, the SIP and CEP packets first, so
+ * only the transport write is serialized.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPFrameSender {
+
+    /**
+     * A packet buffer.
+     */
+    final class Frame {
+
+        final byte[] data;
+        final boolean pooled;
+        int length;
+
+        Frame(byte[] data, boolean pooled) {
+            this.data = data;
+            this.pooled = pooled;
+        }
+
+        /**
+         * Queues the packet to the sender which provided the buffer.
+         */
+        void submit(int length, boolean urgent) {
+            this.length = length;
+            AMASPFrameSender.this.submit(this, urgent);
+        }
+    }
+
+    private final AMASPSerial owner;
+    private final FrameQueue normal;
+    private final FrameQueue priority;
+    private final ConcurrentLinkedQueue<Frame> pool = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param owner The AMASP object whose transport is written.
+     * @param capacity The capacity of each queue in packets.
+     */
+    AMASPFrameSender(AMASPSerial owner, int capacity) {
+        this.owner = owner;
+        this.normal = new FrameQueue(capacity);
+        this.priority = new FrameQueue(capacity);
+        this.writer = new Thread(this::writeLoop, "AMASPFrameSender");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return A packet buffer of PKTMAXSIZE bytes.
+     */
+    Frame acquire() {
+        Frame frame = pool.poll();
+        return (frame != null) ? frame : new Frame(new byte[AMASPSerial.PKTMAXSIZE], true);
+    }
+
+    /**
+     * Queues a packet buffer to be written, waiting while the queue is full.
+     *
+     * @param frame The packet buffer (owned by the sender from now on).
+     * @param urgent True to the priority lane (SIP and CEP packets).
+     */
+    void submit(Frame frame, boolean urgent) {
+        FrameQueue queue = urgent ? priority : normal;
+        while (!queue.offer(frame)) {
+            if (closed) {
+                throw new IllegalStateException("Concurrent send mode disabled");
+            }
+            wakeWriter();
+            LockSupport.parkNanos(this, 10000);
+        }
+        wakeWriter();
+    }
+
+    /**
+     * Queues an immutable buffer of any size, without copying it.
+     */
+    void submitShared(byte[] data, boolean urgent) {
+        Frame frame = new Frame(data, false);
+        frame.length = data.length;
+        submit(frame, urgent);
+    }
+
+    /**
+     * Queues a copy of a buffer of any size.
+     */
+    void submitCopy(byte[] data, int length) {
+        Frame frame = (length <= AMASPSerial.PKTMAXSIZE) ? acquire() : new Frame(new byte[length], false);
+        System.arraycopy(data, 0, frame.data, 0, length);
+        frame.length = length;
+        submit(frame, false);
+    }
+
+    /**
+     * Stops the writer after the queued packets are written.
+     *
+     * @throws InterruptedException If interrupted while waiting the writer.
+     */
+    void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Frame frame = priority.poll();
+            if (frame == null) {
+                frame = normal.poll();
+            }
+            if (frame == null) {
+                if (closed && priority.isEmpty() && normal.isEmpty()) {
+                    break;
+                }
+                writerParked = true;
+                if (priority.isEmpty() && normal.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                writerParked = false;
+                continue;
+            }
+            try {
+                owner.transport.write(frame.data, frame.length);
+            } catch (RuntimeException e) {
+                //Same as a failed write in the direct mode
+            }
+            if (frame.pooled) {
+                pool.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Bounded lock-free multi producer, single consumer queue.
+     */
+    private static final class FrameQueue {
+
+        private final AtomicReferenceArray<Frame> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+
+        FrameQueue(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            slots = new AtomicReferenceArray<>(size);
+            mask = size - 1;
+        }
+
+        boolean offer(Frame frame) {
+            long t;
+            do {
+                t = tail.get();
+                if (t - head.get() >= slots.length()) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(t, t + 1));
+            slots.set((int) t & mask, frame);
+            return true;
+        }
+
+        /**
+         * Called only from the writer thread.
+         */
+        Frame poll() {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int index = (int) h & mask;
+            Frame frame;
+            //The slot is claimed, waiting the producer to fill it
+            while ((frame = slots.get(index)) == null) {
+                Thread.yield();
+            }
+            slots.set(index, null);
+            head.set(h + 1);
+            return frame;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+    }
+}
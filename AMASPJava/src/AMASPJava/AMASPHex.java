@@ -0,0 +1,100 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+/**
+ * Allocation free helpers to handle the ASCII hexadecimal fields of the AMASP
+ * packets.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPHex {
+
+    private static final byte[] DIGIT_VALUE = new byte[256];
+    private static final byte[] DIGIT = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            DIGIT_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            DIGIT_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            DIGIT_VALUE['A' + i] = (byte) (10 + i);
+            DIGIT_VALUE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private AMASPHex() {
+    }
+
+    /**
+     * Parses a hexadecimal field (upper or lower case digits).
+     *
+     * @param data The buffer which contains the field.
+     * @param offset The field position in the buffer.
+     * @param digits The number of digits of the field (1 to 7).
+     * @return The field value or -1 if a non hexadecimal digit was found.
+     */
+    static int parse(byte[] data, int offset, int digits) {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            int digit = DIGIT_VALUE[data[i] & 0xFF];
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Writes a hexadecimal field (upper case digits).
+     *
+     * The result is the same of taking the first digits of
+     * String.format("%0nX", value), so values which do not fit in the field
+     * (including negative ones) are written as the packets have always been.
+     *
+     * @param data The destination buffer.
+     * @param offset The field position in the buffer.
+     * @param value The field value.
+     * @param digits The number of digits of the field.
+     */
+    static void write(byte[] data, int offset, int value, int digits) {
+        value = truncate(value, digits);
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            data[i] = DIGIT[value & 0xF];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * @param value The field value.
+     * @param digits The number of digits of the field.
+     * @return The value written by write() in the field.
+     */
+    static int truncate(int value, int digits) {
+        int valueDigits = (35 - Integer.numberOfLeadingZeros(value)) >> 2;
+        return (valueDigits > digits) ? value >>> ((valueDigits - digits) << 2) : value;
+    }
+}
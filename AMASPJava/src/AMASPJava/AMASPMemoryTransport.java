@@ -0,0 +1,148 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory loopback transport.
+ *
+ * Each transport has a peer: the bytes written in one are read from the
+ * other. The bytes flow through lock-free ring buffers, so the master and
+ * slave code can be run and benchmarked without hardware. The byte time used
+ * by the AMASP objects can be set to emulate a baud rate in the receive
+ * deadlines (the bytes themselves are not delayed).
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPMemoryTransport implements AMASPTransport {
+
+    private final AMASPByteRing rx;
+    private final AMASPByteRing tx;
+    private final AMASPMemoryTransport peer;
+    private volatile boolean open = false;
+    private volatile int readTimeout = 100;
+    private volatile long byteTimeNanos = 0;
+
+    /**
+     * Creates a transport and its peer.
+     *
+     * @param capacity The capacity in bytes of each direction.
+     */
+    public AMASPMemoryTransport(int capacity) {
+        this.rx = new AMASPByteRing(capacity);
+        this.tx = new AMASPByteRing(capacity);
+        this.peer = new AMASPMemoryTransport(this);
+    }
+
+    private AMASPMemoryTransport(AMASPMemoryTransport peer) {
+        this.rx = peer.tx;
+        this.tx = peer.rx;
+        this.peer = peer;
+    }
+
+    /**
+     * @return The other end of the loopback.
+     */
+    public AMASPMemoryTransport getPeer() {
+        return peer;
+    }
+
+    /**
+     * Sets the read timeout.
+     *
+     * @param readTimeout The read timeout in milliseconds (100 by default).
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the byte time reported to the AMASP objects.
+     *
+     * @param byteTimeNanos The time to transmit a byte in nanoseconds (0 by
+     * default).
+     */
+    public void setByteTimeNanos(long byteTimeNanos) {
+        this.byteTimeNanos = byteTimeNanos;
+    }
+
+    @Override
+    public boolean open() {
+        if (rx.isClosed()) {
+            return false;
+        }
+        open = true;
+        return true;
+    }
+
+    /**
+     * Closes both directions of the loopback (the peer reads the bytes
+     * already written and then gets errors).
+     */
+    @Override
+    public void close() {
+        open = false;
+        rx.close();
+        tx.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return rx.available();
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) {
+        try {
+            if (rx.available() == 0) {
+                rx.awaitData(TimeUnit.MILLISECONDS.toNanos(readTimeout));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        return rx.read(buffer, 0, length);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        return tx.write(buffer, 0, length);
+    }
+
+    @Override
+    public boolean awaitData(long timeoutNanos) throws InterruptedException {
+        return rx.awaitData(timeoutNanos);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public long getByteTimeNanos() {
+        return byteTimeNanos;
+    }
+}
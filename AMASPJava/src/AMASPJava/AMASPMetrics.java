@@ -0,0 +1,299 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histogram of the packets sent and received by AMASP
+ * objects (see AMASPSerial.setMetrics()).
+ *
+ * The counters are striped (LongAdder), so recording takes no locks and
+ * scales with the number of threads. The values are read with the getters,
+ * snapshot() or through JMX (registerMBean()).
+ *
+ * The request to response latency is measured from the last MRP sent to a
+ * device to the next SRP or CEP of the device.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPMetrics implements AMASPMetricsMXBean {
+
+    /**
+     * Reasons why the decoder discards received bytes.
+     */
+    public enum DecoderError {
+        BadECA, BadDeviceId, BadType, BadLength, BadErrorCheck, BadEnd, BadCode, Incomplete, Exception
+    }
+
+    private static final int DEVICES = 0x1000;
+    //Latency buckets, bucket i holds the latencies from 2^i to 2^(i+1) - 1 ns
+    private static final int LATENCY_BUCKETS = 40;
+
+    private final LongAdder[] sent = adders(PacketType.values().length);
+    private final LongAdder[] received = adders(PacketType.values().length);
+    private final AtomicReferenceArray<LongAdder> sentByDevice = new AtomicReferenceArray<>(DEVICES);
+    private final AtomicReferenceArray<LongAdder> receivedByDevice = new AtomicReferenceArray<>(DEVICES);
+    private final LongAdder[] decoderErrors = adders(DecoderError.values().length);
+    private final LongAdder[] errorCheckFailures = adders(ErrorCheckType.values().length);
+    private final LongAdder discardedBytes = new LongAdder();
+    private final LongAdder[] latency = adders(LATENCY_BUCKETS);
+    private final LongAdder latencySum = new LongAdder();
+    private final AtomicLongArray requestNanos = new AtomicLongArray(DEVICES);
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void increment(AtomicReferenceArray<LongAdder> adders, int deviceId) {
+        if (deviceId < 0 || deviceId >= DEVICES) {
+            return;
+        }
+        LongAdder adder = adders.get(deviceId);
+        if (adder == null) {
+            adders.compareAndSet(deviceId, null, new LongAdder());
+            adder = adders.get(deviceId);
+        }
+        adder.increment();
+    }
+
+    private static long sum(AtomicReferenceArray<LongAdder> adders, int deviceId) {
+        LongAdder adder = adders.get(deviceId);
+        return (adder == null) ? 0 : adder.sum();
+    }
+
+    void packetSent(PacketType type, int deviceId) {
+        sent[type.ordinal()].increment();
+        increment(sentByDevice, deviceId);
+        if (type == PacketType.MRP && deviceId >= 0 && deviceId < DEVICES) {
+            requestNanos.set(deviceId, System.nanoTime());
+        }
+    }
+
+    void packetReceived(PacketType type, int deviceId) {
+        received[type.ordinal()].increment();
+        increment(receivedByDevice, deviceId);
+        if (type == PacketType.SRP || type == PacketType.CEP) {
+            long start = requestNanos.getAndSet(deviceId, 0);
+            if (start != 0) {
+                recordLatency(System.nanoTime() - start);
+            }
+        }
+    }
+
+    void decoderError(DecoderError error, ErrorCheckType eCheckType, int discarded) {
+        decoderErrors[error.ordinal()].increment();
+        if (error == DecoderError.BadErrorCheck && eCheckType != null) {
+            errorCheckFailures[eCheckType.ordinal()].increment();
+        }
+        discarded(discarded);
+    }
+
+    void discarded(int bytes) {
+        if (bytes > 0) {
+            discardedBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Records a request to response latency measured by the application.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordLatency(long nanos) {
+        int bucket = Math.min(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)), LATENCY_BUCKETS - 1);
+        latency[bucket].increment();
+        latencySum.add(nanos);
+    }
+
+    /**
+     * @param type The packet type.
+     * @return The number of packets sent of the type.
+     */
+    public long getSentCount(PacketType type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type The packet type.
+     * @return The number of valid packets received of the type.
+     */
+    public long getReceivedCount(PacketType type) {
+        return received[type.ordinal()].sum();
+    }
+
+    /**
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @return The number of packets sent to/by the device.
+     */
+    public long getSentCount(int deviceId) {
+        return sum(sentByDevice, deviceId);
+    }
+
+    /**
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @return The number of valid packets received from/to the device.
+     */
+    public long getReceivedCount(int deviceId) {
+        return sum(receivedByDevice, deviceId);
+    }
+
+    /**
+     * @param error The decoder error.
+     * @return The number of times the error was found.
+     */
+    public long getDecoderErrorCount(DecoderError error) {
+        return decoderErrors[error.ordinal()].sum();
+    }
+
+    /**
+     * @param eCheckType The error checking algorithm.
+     * @return The number of received packets whose error check data did not
+     * match with the algorithm.
+     */
+    public long getErrorCheckFailures(ErrorCheckType eCheckType) {
+        return errorCheckFailures[eCheckType.ordinal()].sum();
+    }
+
+    @Override
+    public long getDiscardedBytes() {
+        return discardedBytes.sum();
+    }
+
+    /**
+     * Gets the latency histogram: the element i is the number of latencies
+     * from 2^i to 2^(i+1) - 1 nanoseconds (the last one has no upper limit).
+     *
+     * @return The histogram.
+     */
+    public long[] getLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = latency[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getLatencyCount() {
+        long count = 0;
+        for (LongAdder bucket : latency) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public double getMeanLatencyMicros() {
+        long count = getLatencyCount();
+        return (count == 0) ? 0 : latencySum.sum() / 1000.0 / count;
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram (upper limit of the
+     * bucket which holds the percentile).
+     *
+     * @param percentile The percentile (0 to 100).
+     * @return The latency in microseconds or 0 with no latencies recorded.
+     */
+    public double getLatencyPercentileMicros(double percentile) {
+        long[] histogram = getLatencyHistogram();
+        long count = 0;
+        for (long n : histogram) {
+            count += n;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= Math.max(rank, 1)) {
+                return ((2L << i) - 1) / 1000.0;
+            }
+        }
+        return ((2L << (LATENCY_BUCKETS - 1)) - 1) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return getLatencyPercentileMicros(99);
+    }
+
+    /**
+     * Takes a snapshot of all counters (except the per device ones).
+     *
+     * @return The counters by name, e.g. "sent.MRP", "received.SRP",
+     * "decoderError.BadErrorCheck", "errorCheckFailure.CRC16",
+     * "discardedBytes".
+     */
+    @Override
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (PacketType type : PacketType.values()) {
+            if (type != PacketType.Timeout) {
+                snapshot.put("sent." + type, getSentCount(type));
+                snapshot.put("received." + type, getReceivedCount(type));
+            }
+        }
+        for (DecoderError error : DecoderError.values()) {
+            snapshot.put("decoderError." + error, getDecoderErrorCount(error));
+        }
+        for (ErrorCheckType eCheckType : ErrorCheckType.values()) {
+            snapshot.put("errorCheckFailure." + eCheckType, getErrorCheckFailures(eCheckType));
+        }
+        snapshot.put("discardedBytes", getDiscardedBytes());
+        snapshot.put("latencyCount", getLatencyCount());
+        return snapshot;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     *
+     * @param name The MBean object name, e.g. "AMASPJava:type=Metrics,port=COM3".
+     * @throws JMException If the name is invalid or already registered.
+     */
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server.
+     *
+     * @param name The MBean object name used in registerMBean().
+     * @throws JMException If the name is invalid or not registered.
+     */
+    public void unregisterMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+    }
+}
@@ -0,0 +1,55 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.util.Map;
+
+/**
+ * JMX view of AMASPMetrics.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public interface AMASPMetricsMXBean {
+
+    /**
+     * @return The counters by name (see AMASPMetrics.getSnapshot()).
+     */
+    Map<String, Long> getSnapshot();
+
+    /**
+     * @return The number of received bytes discarded by the decoder.
+     */
+    long getDiscardedBytes();
+
+    /**
+     * @return The number of request to response latencies recorded.
+     */
+    long getLatencyCount();
+
+    /**
+     * @return The mean request to response latency in microseconds.
+     */
+    double getMeanLatencyMicros();
+
+    /**
+     * @return The 99th percentile of the request to response latency in
+     * microseconds (histogram estimate).
+     */
+    double getLatencyP99Micros();
+}
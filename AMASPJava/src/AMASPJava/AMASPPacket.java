@@ -0,0 +1,168 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Recyclable packet which holds the whole received packet in its own buffer.
+ *
+ * The message is exposed without copies, through an offset/length view over
+ * getFrame() or a read-only ByteBuffer. The views are valid only until the
+ * packet is released, since the buffer is reused to receive other packets.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public final class AMASPPacket {
+
+    /**
+     * Position of the message in the packet buffer.
+     */
+    public static final int MESSAGE_OFFSET = 9;
+
+    private final AMASPPacketPool pool;
+    private byte[] frame;
+    private ByteBuffer frameView;
+
+    private PacketType type = PacketType.Timeout;
+    private int deviceId;
+    private int codeLength;
+    private ErrorCheckType errorCheckType;
+    private int errorCheckData;
+    //In the pool (guarded by the pool)
+    boolean released = false;
+
+    AMASPPacket(AMASPPacketPool pool, int frameSize) {
+        this.pool = pool;
+        this.frame = new byte[frameSize];
+    }
+
+    void set(PacketType type, int deviceId, int codeLength, ErrorCheckType errorCheckType, int errorCheckData, byte[] frame) {
+        this.type = type;
+        this.deviceId = deviceId;
+        this.codeLength = codeLength;
+        this.errorCheckType = errorCheckType;
+        this.errorCheckData = errorCheckData;
+        if (this.frame != frame) {
+            this.frame = frame;
+            frameView = null;
+        }
+    }
+
+    /**
+     * @return the type
+     */
+    public PacketType getType() {
+        return type;
+    }
+
+    /**
+     * @return the deviceId
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return the codeLength (message length to MRP and SRP, error or
+     * interruption code to CEP and SIP)
+     */
+    public int getCodeLength() {
+        return codeLength;
+    }
+
+    /**
+     * @return the errorCheckType
+     */
+    public ErrorCheckType getErrorCheckType() {
+        return errorCheckType;
+    }
+
+    /**
+     * @return the errorCheckData
+     */
+    public int getErrorCheckData() {
+        return errorCheckData;
+    }
+
+    /**
+     * @return True if the packet carries a message (MRP or SRP).
+     */
+    public boolean hasMessage() {
+        return type == PacketType.MRP || type == PacketType.SRP;
+    }
+
+    /**
+     * Gets the buffer which holds the whole packet (from the '!' start byte).
+     * The message starts at MESSAGE_OFFSET and its length is getCodeLength().
+     * The buffer must not be modified.
+     *
+     * @return The packet buffer.
+     */
+    public byte[] getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return The message length (0 to CEP and SIP).
+     */
+    public int getMessageLength() {
+        return hasMessage() ? codeLength : 0;
+    }
+
+    /**
+     * Gets a read-only view of the message (position 0, limit equal to the
+     * message length). The view shares the packet buffer.
+     *
+     * @return The message view.
+     */
+    public ByteBuffer getMessageBuffer() {
+        if (frameView == null) {
+            frameView = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        }
+        frameView.limit(MESSAGE_OFFSET + getMessageLength()).position(MESSAGE_OFFSET);
+        return frameView.slice();
+    }
+
+    /**
+     * Gets a copy of the message, as PacketData.getMessage() does.
+     *
+     * @return The message or null to CEP and SIP packets.
+     */
+    public byte[] getMessage() {
+        return hasMessage() ? Arrays.copyOfRange(frame, MESSAGE_OFFSET, MESSAGE_OFFSET + codeLength) : null;
+    }
+
+    /**
+     * Returns the packet to its pool. The packet and its views must not be
+     * used after that.
+     *
+     * @throws IllegalStateException If the packet was already released.
+     */
+    public void release() {
+        pool.release(this);
+    }
+
+    void clear() {
+        type = PacketType.Timeout;
+    }
+}
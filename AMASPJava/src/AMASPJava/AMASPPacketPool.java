@@ -0,0 +1,80 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+/**
+ * Bounded pool of recyclable packets (see AMASPSerial.readPacket(AMASPPacketPool)).
+ *
+ * When the pool is empty a new packet is created, and released packets are
+ * dropped when the pool is full, so the pool never blocks.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPacketPool {
+
+    private final AMASPPacket[] packets;
+    private int count;
+
+    /**
+     * @param capacity The maximum number of idle packets kept in the pool.
+     */
+    public AMASPPacketPool(int capacity) {
+        packets = new AMASPPacket[capacity];
+    }
+
+    /**
+     * Takes a packet from the pool (or creates a new one).
+     *
+     * @return The packet.
+     */
+    public synchronized AMASPPacket acquire() {
+        if (count > 0) {
+            AMASPPacket packet = packets[--count];
+            packets[count] = null;
+            packet.released = false;
+            return packet;
+        }
+        return new AMASPPacket(this, AMASPSerial.PKTMAXSIZE);
+    }
+
+    /**
+     * Gives a packet back to the pool.
+     *
+     * @param packet The packet (see AMASPPacket.release()).
+     * @throws IllegalStateException If the packet was already released, as
+     * two later acquire() calls would share its buffer.
+     */
+    synchronized void release(AMASPPacket packet) {
+        if (packet.released) {
+            throw new IllegalStateException("Packet already released");
+        }
+        packet.released = true;
+        packet.clear();
+        if (count < packets.length) {
+            packets[count++] = packet;
+        }
+    }
+
+    /**
+     * @return The number of idle packets in the pool.
+     */
+    public synchronized int size() {
+        return count;
+    }
+}
@@ -0,0 +1,341 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publisher of the packets read by an AMASPReader, with backpressure.
+ *
+ * Every subscriber has its own bounded buffer, filled by the reading thread
+ * (which never blocks) and drained on an executor as the subscriber requests
+ * items. When a buffer is full the overflow policy applies.
+ *
+ * subscribe() delivers all packets. subscribeInterrupts() delivers only the
+ * SIP and CEP packets, on a dedicated high priority thread, so interrupts
+ * are not delayed by the processing of the responses.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPacketPublisher implements AMASPFlow.Publisher<PacketData>, AMASPReader.PacketListener {
+
+    /**
+     * What to do when the buffer of a subscriber is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discards the oldest buffered packet.
+         */
+        DropOldest,
+        /**
+         * Discards the new packet.
+         */
+        DropNewest,
+        /**
+         * Cancels the subscription with onError().
+         */
+        Error
+    }
+
+    private final AMASPReader reader;
+    private final int bufferSize;
+    private final OverflowPolicy policy;
+    private final Executor executor;
+    private final ExecutorService interruptExecutor;
+    private final CopyOnWriteArrayList<PacketSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * Publisher delivering on the common fork-join pool.
+     *
+     * @param reader The reader of the packets (started by the caller).
+     * @param bufferSize The buffer size of each subscriber in packets.
+     * @param policy The overflow policy.
+     */
+    public AMASPPacketPublisher(AMASPReader reader, int bufferSize, OverflowPolicy policy) {
+        this(reader, bufferSize, policy, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param reader The reader of the packets (started by the caller).
+     * @param bufferSize The buffer size of each subscriber in packets.
+     * @param policy The overflow policy.
+     * @param executor The executor which calls the subscribers of all
+     * packets.
+     */
+    public AMASPPacketPublisher(AMASPReader reader, int bufferSize, OverflowPolicy policy, Executor executor) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("The buffer size must be at least 1");
+        }
+        this.reader = reader;
+        this.bufferSize = bufferSize;
+        this.policy = policy;
+        this.executor = executor;
+        this.interruptExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "AMASPPacketPublisher-interrupts");
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            return t;
+        });
+        reader.addListener(this);
+    }
+
+    public AMASPReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Subscribes to all packets.
+     *
+     * @param subscriber The subscriber.
+     */
+    @Override
+    public void subscribe(AMASPFlow.Subscriber<? super PacketData> subscriber) {
+        add(new PacketSubscription(subscriber, executor, false));
+    }
+
+    /**
+     * Subscribes to the SIP and CEP packets, delivered on a dedicated high
+     * priority thread.
+     *
+     * @param subscriber The subscriber.
+     */
+    public void subscribeInterrupts(AMASPFlow.Subscriber<? super PacketData> subscriber) {
+        add(new PacketSubscription(subscriber, interruptExecutor, true));
+    }
+
+    private void add(PacketSubscription subscription) {
+        if (closed) {
+            subscription.complete(new IllegalStateException("Publisher closed"));
+        } else {
+            subscriptions.add(subscription);
+        }
+        subscription.signal();
+    }
+
+    /**
+     * @return The number of packets discarded by the overflow policy.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of active subscriptions.
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Stops publishing: the subscribers receive onComplete() after the
+     * buffered packets.
+     */
+    public void close() {
+        closed = true;
+        reader.removeListener(this);
+        for (PacketSubscription subscription : subscriptions) {
+            subscription.complete(null);
+        }
+        subscriptions.clear();
+        interruptExecutor.shutdown();
+    }
+
+    /**
+     * Buffers the packet to the subscribers (called from the reading thread).
+     */
+    @Override
+    public void packetReceived(PacketData packet) {
+        boolean interrupt = packet.getType() == PacketType.SIP || packet.getType() == PacketType.CEP;
+        for (PacketSubscription subscription : subscriptions) {
+            if (interrupt || !subscription.interruptsOnly) {
+                subscription.offer(packet);
+            }
+        }
+    }
+
+    private final class PacketSubscription implements AMASPFlow.Subscription, Runnable {
+
+        private final AMASPFlow.Subscriber<? super PacketData> subscriber;
+        private final Executor deliveryExecutor;
+        private final boolean interruptsOnly;
+        private final AtomicInteger wip = new AtomicInteger();
+        //Guarded by this
+        private final ArrayDeque<PacketData> buffer = new ArrayDeque<>();
+        private long demand = 0;
+        private boolean done = false;
+        private Throwable error;
+        //Accessed only by the delivery run
+        private boolean subscribed = false;
+        private boolean terminated = false;
+
+        PacketSubscription(AMASPFlow.Subscriber<? super PacketData> subscriber, Executor deliveryExecutor, boolean interruptsOnly) {
+            this.subscriber = subscriber;
+            this.deliveryExecutor = deliveryExecutor;
+            this.interruptsOnly = interruptsOnly;
+        }
+
+        void offer(PacketData packet) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (buffer.size() >= bufferSize) {
+                    dropped.increment();
+                    switch (policy) {
+                        case DropOldest:
+                            buffer.pollFirst();
+                            buffer.addLast(packet);
+                            break;
+                        case DropNewest:
+                            return;
+                        default:
+                            buffer.clear();
+                            done = true;
+                            error = new IllegalStateException("Subscriber buffer overflow");
+                            subscriptions.remove(this);
+                            break;
+                    }
+                } else {
+                    buffer.addLast(packet);
+                }
+            }
+            signal();
+        }
+
+        void complete(Throwable throwable) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                error = throwable;
+            }
+            signal();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    buffer.clear();
+                }
+                subscriptions.remove(this);
+                complete(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            synchronized (this) {
+                demand += n;
+                if (demand < 0) {
+                    //Overflow, unbounded demand
+                    demand = Long.MAX_VALUE;
+                }
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            subscriptions.remove(this);
+            synchronized (this) {
+                done = true;
+                error = null;
+                buffer.clear();
+                terminated = true;
+            }
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    deliveryExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    //Executor shut down (publisher closed), the terminal
+                    //signal, if still due, is delivered in the calling thread
+                    run();
+                }
+            }
+        }
+
+        /**
+         * Delivery loop, never run concurrently (serialized by wip).
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(this);
+                }
+                while (true) {
+                    PacketData packet;
+                    Throwable failure;
+                    boolean finish;
+                    synchronized (this) {
+                        if (terminated) {
+                            break;
+                        }
+                        packet = (demand > 0) ? buffer.pollFirst() : null;
+                        if (packet != null) {
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                        }
+                        finish = packet == null && done && buffer.isEmpty();
+                        failure = error;
+                        if (finish) {
+                            terminated = true;
+                        }
+                    }
+                    if (packet != null) {
+                        try {
+                            subscriber.onNext(packet);
+                        } catch (RuntimeException e) {
+                            //A failing subscriber is cancelled
+                            cancel();
+                            subscriber.onError(e);
+                        }
+                    } else {
+                        if (finish) {
+                            if (failure != null) {
+                                subscriber.onError(failure);
+                            } else {
+                                subscriber.onComplete();
+                            }
+                        }
+                        break;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
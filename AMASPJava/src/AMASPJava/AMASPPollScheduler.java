@@ -0,0 +1,445 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cyclic polling of slave devices by a master.
+ *
+ * Each device has its own request, poll interval and priority. The polls are
+ * issued back to back on the bus: when a poll ends the due device with the
+ * highest priority is polled at once (the oldest due one among the same
+ * priority). Optionally (setSaturated()) the bus never idles: when no device
+ * is due the one which is due next is polled in advance.
+ *
+ * The response timeout of each device is derived from the byte time of the
+ * transport and the sizes of its request and expected response, plus the
+ * slave turnaround time, so a dead slave only costs the time its response
+ * would take. After a number of consecutive timeouts the device is considered
+ * offline and is polled at a slower retry interval until it answers again.
+ *
+ * The latest response of each device is published without locking
+ * (getLatest()). The scheduler owns the reading of the master, so it must
+ * not be used together with an AMASPReader of the same master; the SIP
+ * packets read while polling are handed to the interrupt listener.
+ *
+ * An exception thrown by a poll (e.g. by the transport or the listener) ends
+ * that poll only; the last one is kept (getLastFailure()).
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPollScheduler implements Runnable {
+
+    /**
+     * Listener of the poll results.
+     */
+    public interface PollListener {
+
+        /**
+         * Called from the polling thread at the end of every poll.
+         *
+         * @param deviceId Id of the polled device.
+         * @param response The SRP or CEP packet of the device or a packet of
+         * Timeout type.
+         */
+        void pollCompleted(int deviceId, PacketData response);
+    }
+
+    /**
+     * A polled device.
+     */
+    public static final class PolledDevice {
+
+        private final int deviceId;
+        private volatile byte[] request;
+        private volatile long intervalNanos;
+        private volatile int priority;
+        private volatile int responseLength;
+        private long dueNanos;
+        private volatile boolean removed = false;
+        private volatile boolean online = true;
+        private int failures = 0;
+        private volatile long pollCount = 0;
+        private volatile long timeoutCount = 0;
+        private volatile long lastLatencyNanos = 0;
+
+        PolledDevice(int deviceId, byte[] request, long intervalMillis, int priority, int responseLength) {
+            this.deviceId = deviceId;
+            this.request = request;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.priority = priority;
+            this.responseLength = responseLength;
+        }
+
+        public int getDeviceId() {
+            return deviceId;
+        }
+
+        public long getIntervalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return False if the device is in the offline retry mode.
+         */
+        public boolean isOnline() {
+            return online;
+        }
+
+        public long getPollCount() {
+            return pollCount;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        /**
+         * @return The request to response time of the last answered poll in
+         * nanoseconds.
+         */
+        public long getLastLatencyNanos() {
+            return lastLatencyNanos;
+        }
+
+        /**
+         * Changes the poll request.
+         *
+         * @param request The request message.
+         * @param responseLength The expected response message length.
+         */
+        public void setRequest(byte[] request, int responseLength) {
+            this.request = request;
+            this.responseLength = responseLength;
+        }
+
+        /**
+         * Changes the poll interval (from the next poll on).
+         *
+         * @param intervalMillis The poll interval in milliseconds.
+         */
+        public void setIntervalMillis(long intervalMillis) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        }
+    }
+
+    private final AMASPSerialMaster master;
+    private final AtomicReferenceArray<PacketData> latest = new AtomicReferenceArray<>(0x1000);
+    private final PolledDevice[] devices = new PolledDevice[0x1000];
+    //Devices waiting their due time, by due time
+    private final PriorityQueue<PolledDevice> waiting = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.dueNanos - b.dueNanos, 0));
+    //Due devices, by priority and due time
+    private final PriorityQueue<PolledDevice> due = new PriorityQueue<>(
+            (a, b) -> a.priority != b.priority ? Integer.compare(b.priority, a.priority)
+            : Long.compare(a.dueNanos - b.dueNanos, 0));
+    private volatile PollListener listener;
+    private volatile AMASPReader.PacketListener interruptListener;
+    private volatile RuntimeException lastFailure;
+    private volatile long turnaroundNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private volatile int maxFailures = 3;
+    private volatile long retryIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+    private volatile boolean saturated = false;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param master The master (already connected with begin()).
+     */
+    public AMASPPollScheduler(AMASPSerialMaster master) {
+        this.master = master;
+    }
+
+    public AMASPSerialMaster getMaster() {
+        return master;
+    }
+
+    /**
+     * Adds a device to be polled (or replaces its poll). The first poll is due
+     * at once.
+     *
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @param request The request message sent in each poll.
+     * @param intervalMillis The poll interval in milliseconds.
+     * @param priority The priority (a higher value is polled first).
+     * @param responseLength The expected response message length, used to
+     * compute the response timeout.
+     * @return The polled device.
+     */
+    public synchronized PolledDevice addDevice(int deviceId, byte[] request, long intervalMillis, int priority, int responseLength) {
+        removeDevice(deviceId);
+        PolledDevice device = new PolledDevice(deviceId, request, intervalMillis, priority, responseLength);
+        device.dueNanos = System.nanoTime();
+        devices[deviceId] = device;
+        waiting.add(device);
+        notifyAll();
+        return device;
+    }
+
+    /**
+     * Stops polling a device.
+     *
+     * @param deviceId Id of the device.
+     */
+    public synchronized void removeDevice(int deviceId) {
+        PolledDevice device = devices[deviceId];
+        if (device != null) {
+            device.removed = true;
+            devices[deviceId] = null;
+            waiting.remove(device);
+            due.remove(device);
+        }
+    }
+
+    /**
+     * @param deviceId Id of the device.
+     * @return The polled device or null if the device is not polled.
+     */
+    public synchronized PolledDevice getDevice(int deviceId) {
+        return devices[deviceId];
+    }
+
+    /**
+     * Gets the latest response of a device, without locking.
+     *
+     * @param deviceId Id of the device.
+     * @return The latest SRP or CEP packet of the device or null if none.
+     */
+    public PacketData getLatest(int deviceId) {
+        return latest.get(deviceId);
+    }
+
+    public void setListener(PollListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the listener of the SIP packets, called from the polling thread.
+     *
+     * @param interruptListener The listener or null to drop the SIP packets
+     * (default).
+     */
+    public void setInterruptListener(AMASPReader.PacketListener interruptListener) {
+        this.interruptListener = interruptListener;
+    }
+
+    /**
+     * @return The last exception thrown by a poll or null if none.
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Sets the time a slave takes to start answering, added to the response
+     * timeout.
+     *
+     * @param turnaroundMicros The turnaround time in microseconds (5 ms by
+     * default).
+     */
+    public void setTurnaroundMicros(long turnaroundMicros) {
+        this.turnaroundNanos = TimeUnit.MICROSECONDS.toNanos(turnaroundMicros);
+    }
+
+    /**
+     * Sets when a device is considered offline and how often it is retried.
+     *
+     * @param maxFailures The number of consecutive timeouts (3 by default).
+     * @param retryIntervalMillis The poll interval of an offline device in
+     * milliseconds (5 s by default).
+     */
+    public void setOfflinePolicy(int maxFailures, long retryIntervalMillis) {
+        this.maxFailures = maxFailures;
+        this.retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(retryIntervalMillis);
+    }
+
+    /**
+     * Enables polling in advance the next due device when no device is due,
+     * so the bus never idles.
+     *
+     * @param saturated True to keep the bus busy (false by default).
+     */
+    public void setSaturated(boolean saturated) {
+        this.saturated = saturated;
+    }
+
+    /**
+     * Computes the response timeout of a poll: the transmission of the request
+     * and of the expected response plus the turnaround time.
+     *
+     * @param requestLength The request message length.
+     * @param responseLength The expected response message length.
+     * @return The timeout in nanoseconds.
+     */
+    public long responseTimeoutNanos(int requestLength, int responseLength) {
+        long byteTime = master.byteTimeNanos();
+        return (requestLength + responseLength + 2L * AMASPFrameEncoder.DATA_OVERHEAD) * byteTime + turnaroundNanos;
+    }
+
+    /**
+     * Starts the polling loop in a new daemon thread.
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            thread = new Thread(this, "AMASPPollScheduler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the polling loop after the current poll.
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        try {
+            PolledDevice device;
+            while ((device = next()) != null) {
+                try {
+                    poll(device);
+                } catch (RuntimeException e) {
+                    lastFailure = e;
+                }
+                reschedule(device);
+            }
+        } catch (InterruptedException e) {
+            //Stopped
+        } finally {
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits the next device to be polled.
+     *
+     * @return The device or null if the scheduler was stopped.
+     */
+    private synchronized PolledDevice next() throws InterruptedException {
+        //A thread replaced by stop() and start() ends as well
+        while (running && thread == Thread.currentThread()) {
+            long now = System.nanoTime();
+            while (!waiting.isEmpty() && waiting.peek().dueNanos - now <= 0) {
+                due.add(waiting.poll());
+            }
+            if (!due.isEmpty()) {
+                return due.poll();
+            }
+            if (!waiting.isEmpty()) {
+                if (saturated) {
+                    return waiting.poll();
+                }
+                long wait = waiting.peek().dueNanos - now;
+                TimeUnit.NANOSECONDS.timedWait(this, wait);
+            } else {
+                wait();
+            }
+        }
+        return null;
+    }
+
+    private synchronized void reschedule(PolledDevice device) {
+        if (device.removed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long interval = device.online ? device.intervalNanos : retryIntervalNanos;
+        if (device.dueNanos - now > 0) {
+            //Polled early (saturated mode), the lead is not carried over
+            device.dueNanos = now;
+        }
+        device.dueNanos += interval;
+        if (device.dueNanos - now < 0) {
+            //Behind the schedule, no burst to catch up
+            device.dueNanos = now;
+        }
+        waiting.add(device);
+    }
+
+    private void poll(PolledDevice device) throws InterruptedException {
+        byte[] request = device.request;
+        long timeout = responseTimeoutNanos(request.length, device.responseLength);
+        long start = System.nanoTime();
+        PacketData response = null;
+
+        master.sendRequest(device.deviceId, request, request.length);
+        long deadline = System.nanoTime() + timeout;
+        while (response == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !master.waitForData(remaining)) {
+                break;
+            }
+            PacketData packet = master.readPacket();
+            //Late answers of previous polls are dropped
+            if ((packet.getType() == PacketType.SRP || packet.getType() == PacketType.CEP)
+                    && packet.getDeviceId() == device.deviceId) {
+                response = packet;
+            } else if (packet.getType() == PacketType.SIP) {
+                AMASPReader.PacketListener l = interruptListener;
+                if (l != null) {
+                    l.packetReceived(packet);
+                }
+            }
+        }
+
+        device.pollCount++;
+        if (response != null) {
+            device.lastLatencyNanos = System.nanoTime() - start;
+            device.failures = 0;
+            device.online = true;
+            latest.set(device.deviceId, response);
+        } else {
+            device.timeoutCount++;
+            AMASPErrorCheckPolicy policy = master.getErrorCheckPolicy();
+            if (policy != null) {
+                policy.requestFailed(device.deviceId);
+            }
+            if (++device.failures >= maxFailures) {
+                device.online = false;
+            }
+            response = master.timeoutPacket(device.deviceId);
+        }
+        PollListener l = listener;
+        if (l != null) {
+            l.pollCompleted(device.deviceId, response);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group of AMASP masters (one per serial port) driven from a single process.
+ *
+ * Every port has an asynchronous master (AMASPAsyncMaster) whose reading loop
+ * runs in the executor of the group, and the requests are routed to the port
+ * of the device through a device ID to port map. With the event driven
+ * receive mode enabled in the masters the reading loops only wake up when
+ * data arrives; in a Java 21 or newer runtime a virtual thread per task
+ * executor (Executors.newVirtualThreadPerTaskExecutor()) avoids one platform
+ * thread per port. The request deadlines of all ports share one timer
+ * thread.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPortGroup {
+
+    private static final int DEVICES = 0x1000;
+
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "AMASPPortGroup-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean running = false;
+    private final Map<String, AMASPAsyncMaster> ports = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<AMASPAsyncMaster> routes = new AtomicReferenceArray<>(DEVICES);
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * Creates a group whose reading loops run in daemon threads of its own.
+     */
+    public AMASPPortGroup() {
+        this.ownExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "AMASPPortGroup-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor = ownExecutor;
+    }
+
+    /**
+     * Creates a group whose reading loops run in a given executor.
+     *
+     * @param executor The executor (one long running task per port).
+     */
+    public AMASPPortGroup(Executor executor) {
+        this.ownExecutor = null;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds a port to the group. If the group is running the port is started.
+     *
+     * @param name The port name (used in mapDevice()).
+     * @param master The AMASP master of the port (already connected with
+     * begin()).
+     * @param maxPerDevice Maximum number of outstanding requests per device.
+     * @param maxTotal Maximum number of outstanding requests in the port.
+     * @return The asynchronous master of the port.
+     */
+    public synchronized AMASPAsyncMaster addPort(String name, AMASPSerialMaster master, int maxPerDevice, int maxTotal) {
+        AMASPAsyncMaster port = new AMASPAsyncMaster(new AMASPReader(master), maxPerDevice, maxTotal, timer);
+        if (ports.putIfAbsent(name, port) != null) {
+            throw new IllegalArgumentException("Port already in the group: " + name);
+        }
+        if (running) {
+            port.start(executor);
+        }
+        return port;
+    }
+
+    /**
+     * Removes a port from the group, stopping it and removing its routes.
+     *
+     * @param name The port name.
+     */
+    public synchronized void removePort(String name) {
+        AMASPAsyncMaster port = ports.remove(name);
+        if (port != null) {
+            for (int i = 0; i < DEVICES; i++) {
+                routes.compareAndSet(i, port, null);
+            }
+            port.stop();
+        }
+    }
+
+    /**
+     * @return The ports of the group by name.
+     */
+    public Map<String, AMASPAsyncMaster> getPorts() {
+        return Collections.unmodifiableMap(ports);
+    }
+
+    /**
+     * Routes the requests to a device through a port.
+     *
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @param portName The port name.
+     * @throws IllegalArgumentException If the device ID is out of range or
+     * the port is unknown.
+     */
+    public synchronized void mapDevice(int deviceId, String portName) {
+        if (deviceId < 0 || deviceId >= DEVICES) {
+            throw new IllegalArgumentException("Invalid device ID: " + deviceId);
+        }
+        AMASPAsyncMaster port = ports.get(portName);
+        if (port == null) {
+            throw new IllegalArgumentException("Unknown port: " + portName);
+        }
+        routes.set(deviceId, port);
+    }
+
+    /**
+     * Starts the reading loops of all ports.
+     */
+    public synchronized void start() {
+        running = true;
+        startNanos = System.nanoTime();
+        for (AMASPAsyncMaster port : ports.values()) {
+            port.start(executor);
+        }
+    }
+
+    /**
+     * Stops all ports (their outstanding requests are cancelled). The timer
+     * thread and the threads of the group own executor are released as well,
+     * so the group can not be started again.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (AMASPAsyncMaster port : ports.values()) {
+            port.stop();
+        }
+        timer.shutdownNow();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Sends a MRP packet through the port of the device.
+     *
+     * @param deviceId Id of the requested device (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> requestAsync(int deviceId, byte[] message) {
+        return count(route(deviceId).requestAsync(deviceId, message));
+    }
+
+    /**
+     * Sends a MRP packet through the port of the device.
+     *
+     * @param deviceId Id of the requested device (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @param timeoutMillis The request deadline in milliseconds.
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> requestAsync(int deviceId, byte[] message, int msgLength, long timeoutMillis) {
+        return count(route(deviceId).requestAsync(deviceId, message, msgLength, timeoutMillis));
+    }
+
+    private AMASPAsyncMaster route(int deviceId) {
+        AMASPAsyncMaster port = (deviceId >= 0 && deviceId < DEVICES) ? routes.get(deviceId) : null;
+        if (port == null) {
+            throw new IllegalArgumentException("No port for device ID: " + deviceId);
+        }
+        return port;
+    }
+
+    private CompletableFuture<PacketData> count(CompletableFuture<PacketData> future) {
+        requests.increment();
+        future.whenComplete((packet, failure) -> {
+            if (failure != null) {
+                failures.increment();
+            } else if (packet.getType() == PacketType.CEP) {
+                errors.increment();
+            } else {
+                responses.increment();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return The number of requests sent through the group.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return The number of SRP responses received.
+     */
+    public long getResponseCount() {
+        return responses.sum();
+    }
+
+    /**
+     * @return The number of CEP responses received.
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return The number of requests failed by timeout, rejection or stop.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return The aggregate number of responses (SRP and CEP) per second of
+     * all ports since the group was started.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return (seconds > 0) ? (responses.sum() + errors.sum()) / seconds : 0;
+    }
+}
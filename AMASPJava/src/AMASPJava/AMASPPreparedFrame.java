@@ -0,0 +1,106 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.Arrays;
+
+/**
+ * A packet encoded once to be sent many times (see
+ * AMASPSerialMaster.prepareRequest() and AMASPSerial.sendPrepared()), e.g.
+ * the request of a polling loop.
+ *
+ * The encoded bytes are immutable, so a prepared packet may be shared by
+ * threads and sent without copying.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public final class AMASPPreparedFrame {
+
+    final byte[] frame;
+    private final PacketType type;
+    private final int deviceId;
+    private final int codeLength;
+    private final ErrorCheckType errorCheckType;
+    private final int errorCheckData;
+
+    AMASPPreparedFrame(byte[] frame, PacketType type, int deviceId, int codeLength, int errorCheckData) {
+        this.frame = frame;
+        this.type = type;
+        this.deviceId = deviceId;
+        this.codeLength = codeLength;
+        this.errorCheckType = ErrorCheckType.fromValue(frame[2] - '0');
+        this.errorCheckData = errorCheckData;
+    }
+
+    /**
+     * @return the type
+     */
+    public PacketType getType() {
+        return type;
+    }
+
+    /**
+     * @return the deviceId
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return The message length (MRP and SRP) or the error/interruption code
+     * (CEP and SIP).
+     */
+    public int getCodeLength() {
+        return codeLength;
+    }
+
+    /**
+     * @return The error checking algorithm the packet was encoded with.
+     */
+    public ErrorCheckType getErrorCheckType() {
+        return errorCheckType;
+    }
+
+    /**
+     * @return the errorCheckData
+     */
+    public int getErrorCheckData() {
+        return errorCheckData;
+    }
+
+    /**
+     * @return The packet length in bytes.
+     */
+    public int getLength() {
+        return frame.length;
+    }
+
+    /**
+     * @return A copy of the encoded packet.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(frame, frame.length);
+    }
+
+    boolean isData() {
+        return type == PacketType.MRP || type == PacketType.SRP;
+    }
+}
@@ -0,0 +1,190 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background reader which reads the packets of an AMASP object in a loop and
+ * hands them to the registered listeners.
+ *
+ * The listeners are called from the reading thread, so they should not block.
+ * The loop ends with stop() or when the transport is closed.
+ * Enabling the event driven receive mode of the AMASP object
+ * (setEventDrivenReceive()) avoids polling the port while the bus is idle.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPReader implements Runnable {
+
+    /**
+     * Listener of the packets received by an AMASPReader.
+     */
+    public interface PacketListener {
+
+        /**
+         * Called from the reading thread for every valid packet.
+         *
+         * @param packet The received packet.
+         */
+        void packetReceived(PacketData packet);
+    }
+
+    //Time between the checks of the running flag while the bus is idle
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AMASPSerial serial;
+    private final CopyOnWriteArrayList<PacketListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running = false;
+    //True from start() until the end of the reading loop
+    private boolean active = false;
+    private Thread thread;
+
+    /**
+     * @param serial The AMASP object (already connected with begin()).
+     */
+    public AMASPReader(AMASPSerial serial) {
+        this.serial = serial;
+    }
+
+    /**
+     * @return The AMASP object read by this reader.
+     */
+    public AMASPSerial getSerial() {
+        return serial;
+    }
+
+    /**
+     * Registers a packet listener.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(PacketListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a packet listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(PacketListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the reading loop in a new daemon thread. Does nothing if the
+     * reader is already running (or still finishing a stop()).
+     */
+    public synchronized void start() {
+        if (!active) {
+            running = true;
+            active = true;
+            Thread t = new Thread(this, "AMASPReader");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Starts the reading loop in a thread of an executor. Does nothing if the
+     * reader is already running (or still finishing a stop()).
+     *
+     * @param executor The executor which runs the reading loop.
+     */
+    public synchronized void start(Executor executor) {
+        if (!active) {
+            running = true;
+            active = true;
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                running = false;
+                active = false;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops the reading loop. The loop ends after the packet being read.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return True if the reading loop is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * The reading loop (see start()). It must not be run directly.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        try {
+            while (running) {
+                try {
+                    if (!serial.waitForData(IDLE_WAIT_NANOS)) {
+                        if (serial.getTransport().bytesAvailable() < 0) {
+                            break; //Transport closed or failed
+                        }
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                PacketData packet = serial.readPacket();
+                if (packet.getType() != PacketType.Timeout) {
+                    dispatch(packet);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                thread = null;
+                running = false;
+                active = false;
+            }
+        }
+    }
+
+    /**
+     * Hands a packet to the listeners.
+     *
+     * @param packet The received packet.
+     */
+    protected void dispatch(PacketData packet) {
+        for (PacketListener listener : listeners) {
+            listener.packetReceived(packet);
+        }
+    }
+}
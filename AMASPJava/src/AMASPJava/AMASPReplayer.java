@@ -0,0 +1,177 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPCapture.Direction;
+import AMASPJava.AMASPCapture.Record;
+import AMASPJava.AMASPSerial.PacketType;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reader of the segment files written by AMASPCapture.
+ *
+ * The records are read one by one with next() (post-mortem analysis) or
+ * written to a transport with replay(), at the recorded timing or as fast as
+ * possible, so the packets go through the decoder of the AMASP object on the
+ * other side (e.g. the peer of an AMASPMemoryTransport). The raw received
+ * records hold the bytes as they were read, so a replay reproduces the noise
+ * and the rejected packets too; the records of the packets decoded from them
+ * are not written again.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPReplayer implements Closeable {
+
+    private final File directory;
+    private final String prefix;
+    private int segmentIndex = 0;
+    private MappedByteBuffer segment;
+    private long startMillis;
+
+    /**
+     * @param directory The directory of the segment files.
+     * @param prefix The name prefix of the segment files.
+     */
+    public AMASPReplayer(File directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return The capture start time (epoch milliseconds), known after the
+     * first record is read.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return The record or null at the end of the capture.
+     * @throws IOException If a segment could not be read or is invalid.
+     */
+    public Record next() throws IOException {
+        while (true) {
+            if (segment == null && !openSegment()) {
+                return null;
+            }
+            int length = (segment.remaining() >= AMASPCapture.RECORD_HEADER_SIZE) ? segment.getInt() : 0;
+            if (length <= 0) {
+                //End of the segment
+                segment = null;
+                segmentIndex++;
+                continue;
+            }
+            if (length > segment.remaining() - AMASPCapture.RECORD_HEADER_SIZE + 4) {
+                throw new IOException("Truncated record in capture segment " + segmentIndex);
+            }
+            long timeNanos = segment.getLong();
+            Direction direction = Direction.values()[segment.get() & 0x01];
+            int type = segment.get();
+            int deviceId = segment.getShort() & 0xFFFF;
+            byte[] frame = new byte[length];
+            segment.get(frame);
+            return new Record(timeNanos, direction, (type >= 0 && type < 4) ? PacketType.values()[type] : null,
+                    deviceId, frame);
+        }
+    }
+
+    /**
+     * Writes the captured packets to a transport.
+     *
+     * @param transport The transport.
+     * @param direction The direction of the packets to be written or null to
+     * all packets.
+     * @param speed The replay speed relative to the recorded timing (1.0 to the
+     * recorded timing) or 0 to write as fast as possible.
+     * @return The number of packets written.
+     * @throws IOException If a segment could not be read or is invalid.
+     * @throws InterruptedException If interrupted while waiting the timing.
+     */
+    public int replay(AMASPTransport transport, Direction direction, double speed) throws IOException, InterruptedException {
+        Record record;
+        int count = 0;
+        long firstNanos = -1;
+        long startNanos = System.nanoTime();
+
+        while ((record = next()) != null) {
+            if ((direction != null && record.getDirection() != direction)
+                    || (record.getDirection() == Direction.Received && record.getType() != null)) {
+                continue;
+            }
+            if (speed > 0) {
+                if (firstNanos < 0) {
+                    firstNanos = record.getTimeNanos();
+                }
+                long due = startNanos + (long) ((record.getTimeNanos() - firstNanos) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            if (transport.write(record.getFrame(), record.getFrame().length) < 0) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Restarts the reading from the first segment.
+     */
+    public void rewind() {
+        segment = null;
+        segmentIndex = 0;
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+    }
+
+    private boolean openSegment() throws IOException {
+        File file = AMASPCapture.segmentFile(directory, prefix, segmentIndex);
+        if (!file.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        segment.order(ByteOrder.BIG_ENDIAN);
+        byte[] magic = new byte[AMASPCapture.MAGIC.length];
+        if (segment.remaining() < AMASPCapture.SEGMENT_HEADER_SIZE) {
+            throw new IOException("Invalid capture segment " + file);
+        }
+        segment.get(magic);
+        if (!Arrays.equals(magic, AMASPCapture.MAGIC) || segment.getInt() != AMASPCapture.VERSION) {
+            throw new IOException("Invalid capture segment " + file);
+        }
+        startMillis = segment.getLong();
+        return true;
+    }
+}
@@ -0,0 +1,310 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request coalescing and response cache over an asynchronous master.
+ *
+ * The requests are keyed by device ID and message. Identical requests issued
+ * while one is in flight share its bus transaction, and the SRP responses are
+ * kept in a bounded LRU cache for a time to live (TTL) configurable per
+ * device, so repeated requests are answered without using the bus. CEP
+ * responses and failures are not cached.
+ *
+ * The cached PacketData objects are shared by all the callers, their
+ * messages must not be modified.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPRequestCache {
+
+    private static final int DEVICES = 0x1000;
+    private static final long DEFAULT_TTL = -1;
+
+    private final AMASPAsyncMaster async;
+    private final int capacity;
+    private final ConcurrentHashMap<Key, CompletableFuture<PacketData>> inFlight = new ConcurrentHashMap<>();
+    //Responses by request, in access order (guarded by itself)
+    private final LinkedHashMap<Key, CachedResponse> cache;
+    private final AtomicLongArray ttlNanos = new AtomicLongArray(DEVICES);
+    private volatile long defaultTtlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Key {
+
+        final int deviceId;
+        final byte[] message;
+        final int hash;
+
+        Key(int deviceId, byte[] message, int msgLength) {
+            this.deviceId = deviceId;
+            this.message = Arrays.copyOf(message, Math.min(msgLength, message.length));
+            this.hash = 31 * deviceId + Arrays.hashCode(this.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return deviceId == other.deviceId && Arrays.equals(message, other.message);
+        }
+    }
+
+    private static final class CachedResponse {
+
+        final PacketData response;
+        final long expiresNanos;
+
+        CachedResponse(PacketData response, long expiresNanos) {
+            this.response = response;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    /**
+     * @param async The asynchronous master which sends the requests.
+     * @param capacity Maximum number of cached responses.
+     * @param defaultTtlMillis The default time to live of the cached responses
+     * in milliseconds (0 disables the cache, the requests are still
+     * coalesced).
+     */
+    public AMASPRequestCache(AMASPAsyncMaster async, int capacity, long defaultTtlMillis) {
+        this.async = async;
+        this.capacity = capacity;
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(defaultTtlMillis);
+        this.cache = new LinkedHashMap<Key, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResponse> eldest) {
+                if (size() > AMASPRequestCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        for (int i = 0; i < DEVICES; i++) {
+            ttlNanos.set(i, DEFAULT_TTL);
+        }
+    }
+
+    public AMASPAsyncMaster getAsyncMaster() {
+        return async;
+    }
+
+    /**
+     * Sets the default time to live of the cached responses.
+     *
+     * @param ttlMillis The time to live in milliseconds (0 disables the
+     * cache).
+     */
+    public void setDefaultTtl(long ttlMillis) {
+        this.defaultTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Sets the time to live of the cached responses of a device.
+     *
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @param ttlMillis The time to live in milliseconds (0 disables the cache
+     * of the device) or a negative value to use the default.
+     */
+    public void setTtl(int deviceId, long ttlMillis) {
+        ttlNanos.set(deviceId, ttlMillis < 0 ? DEFAULT_TTL : TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+    }
+
+    /**
+     * Sends a MRP packet, unless an identical request is in flight or its
+     * response is cached. The deadline is the default one of the asynchronous
+     * master.
+     *
+     * @param deviceId Id of the requested device in slave (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> request(int deviceId, byte[] message) {
+        return request(deviceId, message, message.length, async.getDefaultTimeout());
+    }
+
+    /**
+     * Sends a MRP packet, unless an identical request is in flight or its
+     * response is cached.
+     *
+     * @param deviceId Id of the requested device in slave (0x000 to 0xFFF).
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @param timeoutMillis The request deadline in milliseconds (only used if
+     * the request is sent).
+     * @return The future SRP or CEP packet of the device.
+     */
+    public CompletableFuture<PacketData> request(int deviceId, byte[] message, int msgLength, long timeoutMillis) {
+        if (deviceId < 0 || deviceId >= DEVICES) {
+            throw new IllegalArgumentException("Invalid device ID: " + deviceId);
+        }
+        Key key = new Key(deviceId, message, msgLength);
+        PacketData cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        misses.increment();
+
+        CompletableFuture<PacketData> shared = new CompletableFuture<>();
+        CompletableFuture<PacketData> current = inFlight.putIfAbsent(key, shared);
+        if (current != null) {
+            coalesced.increment();
+            //A dependent future, so a caller cannot cancel the shared one
+            return current.thenApply(packet -> packet);
+        }
+        async.requestAsync(deviceId, key.message, key.message.length, timeoutMillis).whenComplete((packet, error) -> {
+            if (error == null && packet.getType() == PacketType.SRP) {
+                store(key, packet);
+            }
+            inFlight.remove(key, shared);
+            if (error != null) {
+                shared.completeExceptionally(error);
+            } else {
+                shared.complete(packet);
+            }
+        });
+        return shared.thenApply(packet -> packet);
+    }
+
+    private PacketData lookup(Key key) {
+        synchronized (cache) {
+            CachedResponse entry = cache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresNanos - System.nanoTime() <= 0) {
+                cache.remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+    }
+
+    private void store(Key key, PacketData response) {
+        long ttl = ttlNanos.get(key.deviceId);
+        if (ttl == DEFAULT_TTL) {
+            ttl = defaultTtlNanos;
+        }
+        if (ttl <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(key, new CachedResponse(response, System.nanoTime() + ttl));
+        }
+    }
+
+    /**
+     * Removes the cached responses of a device, e.g. after a write request.
+     *
+     * @param deviceId Id of the device.
+     */
+    public void invalidate(int deviceId) {
+        synchronized (cache) {
+            Iterator<Key> it = cache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().deviceId == deviceId) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached responses.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return The number of cached responses (including the expired ones not
+     * removed yet).
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return The number of requests answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of requests not found in the cache (sent or
+     * coalesced).
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of requests which shared the transaction of an
+     * identical request in flight.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return The number of responses evicted to keep the capacity.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The ratio of requests answered from the cache.
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+}
@@ -18,7 +18,11 @@
 package AMASPJava;
 
 import com.fazecast.jSerialComm.SerialPort;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * AMASP Abstract class
@@ -29,6 +33,11 @@ import java.util.Arrays;
 public abstract class AMASPSerial {
 
     private ErrorCheckType errorCheckType = ErrorCheckType.None;
+    private AMASPErrorCheckEngine errorCheckEngine = AMASPTableErrorCheck.getInstance();
+    volatile AMASPMetrics metrics;
+    volatile AMASPCapture capture;
+    volatile AMASPErrorCheckPolicy errorCheckPolicy;
+    volatile AMASPFrameCache frameCache;
     
     
     /**
@@ -95,6 +104,372 @@ public abstract class AMASPSerial {
     {
         return errorCheckType;
     }
+
+    /**
+     * Sets the engine which computes the error check data of the sent and
+     * received packets. The default engine is the table driven one
+     * (AMASPTableErrorCheck).
+     *
+     * @param errorCheckEngine The error check engine or null to use the
+     * reference (bit-wise) algorithms of this class.
+     */
+    public void setErrorCheckEngine(AMASPErrorCheckEngine errorCheckEngine)
+    {
+        this.errorCheckEngine = errorCheckEngine;
+    }
+
+    /**
+     * Gets the engine which computes the error check data.
+     *
+     * @return The error check engine or null if the reference algorithms are
+     * used.
+     */
+    public AMASPErrorCheckEngine getErrorCheckEngine()
+    {
+        return errorCheckEngine;
+    }
+
+    /**
+     * Sets the metrics which count the sent and received packets, decoding
+     * errors and request to response latencies. A metrics object may be
+     * shared by several AMASP objects.
+     *
+     * @param metrics The metrics or null to disable the counting (default).
+     */
+    public void setMetrics(AMASPMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the metrics of this object.
+     *
+     * @return The metrics or null if the counting is disabled.
+     */
+    public AMASPMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Sets the capture which records the packets sent, the raw bytes received
+     * (before decoding) and the packets decoded from them.
+     *
+     * @param capture The capture (started by the caller) or null to disable
+     * the capture (default).
+     */
+    public void setCapture(AMASPCapture capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Gets the capture of this object.
+     *
+     * @return The capture or null if the capture is disabled.
+     */
+    public AMASPCapture getCapture()
+    {
+        return capture;
+    }
+
+    /**
+     * Sets the policy which chooses the error checking algorithm of the sent
+     * packets per device, from the observed error rates. While a policy is
+     * set the algorithm of setErrorCheckType() is not used.
+     *
+     * @param errorCheckPolicy The policy or null to use the algorithm of
+     * setErrorCheckType() for all devices (default).
+     */
+    public void setErrorCheckPolicy(AMASPErrorCheckPolicy errorCheckPolicy)
+    {
+        this.errorCheckPolicy = errorCheckPolicy;
+    }
+
+    /**
+     * Gets the error checking policy of this object.
+     *
+     * @return The policy or null if the algorithm is fixed.
+     */
+    public AMASPErrorCheckPolicy getErrorCheckPolicy()
+    {
+        return errorCheckPolicy;
+    }
+
+    /**
+     * Sets the cache of encoded packets used by the send methods which take a
+     * byte array message or a code.
+     *
+     * @param frameCache The cache or null to encode every packet (default).
+     */
+    public void setFrameCache(AMASPFrameCache frameCache)
+    {
+        this.frameCache = frameCache;
+    }
+
+    /**
+     * Gets the cache of encoded packets of this object.
+     *
+     * @return The cache or null if every packet is encoded.
+     */
+    public AMASPFrameCache getFrameCache()
+    {
+        return frameCache;
+    }
+
+    /**
+     * @param deviceId Id of the device (any value, as the packet header
+     * fields are truncated and not validated).
+     * @return The error checking algorithm of the packets sent to or by the
+     * device.
+     */
+    ErrorCheckType errorCheckTypeFor(int deviceId)
+    {
+        AMASPErrorCheckPolicy p = errorCheckPolicy;
+        return (p != null) ? p.getErrorCheckType(deviceId) : errorCheckType;
+    }
+
+    /**
+     * Enables the concurrent send mode: the packets are encoded in the sending
+     * threads into pooled buffers and written by a single writer thread, the
+     * SIP and CEP packets first. Without it the send methods must not be
+     * called concurrently.
+     *
+     * Must be called while no packet is being sent.
+     *
+     * @param queueCapacity The number of packets which may wait to be written
+     * in each lane; a sending thread waits while its lane is full.
+     */
+    public synchronized void enableConcurrentSend(int queueCapacity)
+    {
+        if (sender == null) {
+            sender = new AMASPFrameSender(this, queueCapacity);
+        }
+    }
+
+    /**
+     * Disables the concurrent send mode after the queued packets are
+     * written.
+     *
+     * Must be called while no packet is being sent.
+     *
+     * @throws InterruptedException If interrupted while waiting the writer.
+     */
+    public synchronized void disableConcurrentSend() throws InterruptedException
+    {
+        AMASPFrameSender s = sender;
+        if (s != null) {
+            sender = null;
+            s.close();
+        }
+    }
+
+    /**
+     * @return True if the concurrent send mode is enabled.
+     */
+    public boolean isConcurrentSend()
+    {
+        return sender != null;
+    }
+
+    /**
+     * @return A pooled packet buffer in the concurrent send mode or null if
+     * the send buffer (txBuf) is used.
+     */
+    AMASPFrameSender.Frame acquireFrame()
+    {
+        AMASPFrameSender s = sender;
+        return (s == null) ? null : s.acquire();
+    }
+
+    byte[] sendBuffer(AMASPFrameSender.Frame frame)
+    {
+        return (frame == null) ? txBuf : frame.data;
+    }
+
+    /**
+     * Writes an encoded packet, straight from the send buffer or through the
+     * writer of the concurrent send mode.
+     *
+     * @param frame The packet buffer from acquireFrame().
+     * @param length The packet length.
+     * @param type The packet type.
+     * @param deviceId Id of the device.
+     */
+    void writePacket(AMASPFrameSender.Frame frame, int length, PacketType type, int deviceId)
+    {
+        if (frame == null) {
+            transport.write(txBuf, length);
+            packetSent(type, deviceId, txBuf, 0, length);
+        } else {
+            //Recorded first, the buffer is recycled once written
+            packetSent(type, deviceId, frame.data, 0, length);
+            frame.submit(length, type == PacketType.SIP || type == PacketType.CEP);
+        }
+    }
+
+    /**
+     * Writes bytes which may hold several packets (see AMASPFrameBatch).
+     *
+     * @return The number of bytes written or queued.
+     */
+    int writeRaw(byte[] data, int length)
+    {
+        AMASPFrameSender s = sender;
+        if (s == null) {
+            return transport.write(data, length);
+        }
+        s.submitCopy(data, length);
+        return length;
+    }
+
+    /**
+     * Sends a prepared packet in a single write, without copying it. If the
+     * error checking algorithm of its device was changed (see
+     * setErrorCheckPolicy()) the packet is encoded again.
+     *
+     * @param prepared The prepared packet.
+     * @return The error check data.
+     */
+    public int sendPrepared(AMASPPreparedFrame prepared)
+    {
+        if (prepared.getErrorCheckType() != errorCheckTypeFor(prepared.getDeviceId())) {
+            byte typeChar = prepared.frame[1];
+            if (prepared.isData()) {
+                prepared = prepareData(typeChar, prepared.getType(), prepared.getDeviceId(),
+                        prepared.frame, AMASPPacket.MESSAGE_OFFSET, prepared.getCodeLength());
+            } else {
+                prepared = prepareCode(typeChar, prepared.getType(), prepared.getDeviceId(), prepared.getCodeLength());
+            }
+        }
+        PacketType type = prepared.getType();
+        AMASPFrameSender s = sender;
+        if (s == null) {
+            transport.write(prepared.frame, prepared.frame.length);
+            packetSent(type, prepared.getDeviceId(), prepared.frame, 0, prepared.frame.length);
+        } else {
+            packetSent(type, prepared.getDeviceId(), prepared.frame, 0, prepared.frame.length);
+            s.submitShared(prepared.frame, type == PacketType.SIP || type == PacketType.CEP);
+        }
+        return prepared.getErrorCheckData();
+    }
+
+    /**
+     * Gets a MRP or SRP packet from the frame cache or encodes it.
+     */
+    AMASPPreparedFrame cachedData(byte typeChar, PacketType type, int deviceId, byte[] message, int msgLength)
+    {
+        if (message.length < msgLength) {
+            msgLength = message.length; //saturating
+        }
+        if (msgLength > MSGMAXSIZE) {
+            msgLength = MSGMAXSIZE; //saturating
+        }
+        AMASPFrameCache cache = frameCache;
+        if (cache != null) {
+            return cache.getData(this, typeChar, type, deviceId, message, msgLength);
+        }
+        return prepareData(typeChar, type, deviceId, message, 0, msgLength);
+    }
+
+    /**
+     * Encodes a MRP or SRP packet into its own buffer.
+     */
+    AMASPPreparedFrame prepareData(byte typeChar, PacketType type, int deviceId, byte[] message, int offset, int msgLength)
+    {
+        byte[] frame = new byte[AMASPFrameEncoder.DATA_OVERHEAD + msgLength];
+        int ecd = encoder.encodeData(frame, 0, typeChar, deviceId, message, offset, msgLength);
+        return new AMASPPreparedFrame(frame, type, deviceId, msgLength, ecd);
+    }
+
+    /**
+     * Encodes a CEP or SIP packet into its own buffer.
+     */
+    AMASPPreparedFrame prepareCode(byte typeChar, PacketType type, int deviceId, int code)
+    {
+        byte[] frame = new byte[AMASPFrameEncoder.CODE_PACKET_SIZE];
+        int ecd = encoder.encodeCode(frame, 0, typeChar, deviceId, code);
+        return new AMASPPreparedFrame(frame, type, deviceId, code, ecd);
+    }
+
+    /**
+     * Gets a CEP or SIP packet from the frame cache or encodes it.
+     */
+    AMASPPreparedFrame cachedCode(byte typeChar, PacketType type, int deviceId, int code)
+    {
+        AMASPFrameCache cache = frameCache;
+        if (cache != null) {
+            return cache.getCode(this, typeChar, type, deviceId, code);
+        }
+        return prepareCode(typeChar, type, deviceId, code);
+    }
+
+    /**
+     * Encodes and sends a MRP or SRP packet whose message is already in the
+     * packet buffer (see putMessage()).
+     */
+    int sendData(AMASPFrameSender.Frame frame, byte typeChar, PacketType type, int deviceId, int msgLength)
+    {
+        int ecd = encoder.encodeData(sendBuffer(frame), 0, typeChar, deviceId, msgLength);
+
+        writePacket(frame, AMASPFrameEncoder.DATA_OVERHEAD + msgLength, type, deviceId);
+        return ecd;
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer (up to MSGMAXSIZE) to the message
+     * position of a packet buffer.
+     *
+     * @return The message length.
+     */
+    int putMessage(byte[] buffer, ByteBuffer message)
+    {
+        int msgLength = Math.min(message.remaining(), MSGMAXSIZE);
+
+        message.get(buffer, AMASPPacket.MESSAGE_OFFSET, msgLength);
+        return msgLength;
+    }
+
+    /**
+     * Encodes a string (up to MSGMAXSIZE bytes) to the message position of
+     * a packet buffer. ASCII strings in an ASCII compatible charset are
+     * written char by char, without allocating.
+     *
+     * @return The message length.
+     */
+    int putMessage(byte[] buffer, String message, Charset charset)
+    {
+        int length = message.length();
+
+        if (length <= MSGMAXSIZE && (charset == StandardCharsets.US_ASCII
+                || charset == StandardCharsets.ISO_8859_1 || charset == StandardCharsets.UTF_8)) {
+            int i = 0;
+            while (i < length) {
+                char c = message.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                buffer[AMASPPacket.MESSAGE_OFFSET + i] = (byte) c;
+                i++;
+            }
+            if (i == length) {
+                return length;
+            }
+        }
+        return putMessage(buffer, ByteBuffer.wrap(message.getBytes(charset)));
+    }
+
+    void packetSent(PacketType type, int deviceId, byte[] frame, int offset, int length)
+    {
+        AMASPMetrics m = metrics;
+        if (m != null) {
+            m.packetSent(type, deviceId);
+        }
+        AMASPCapture c = capture;
+        if (c != null) {
+            c.capture(AMASPCapture.Direction.Sent, type, deviceId, frame, offset, length);
+        }
+    }
         
     /**
      * Store the data and metadata of the packet.
@@ -153,10 +528,36 @@ public abstract class AMASPSerial {
         private int errorCheckData;
     }
 
-    public final int MSGMAXSIZE = 4096;
-    private final int PKTMAXSIZE = MSGMAXSIZE + 15;
+    /**
+     * Creates a packet of Timeout type.
+     *
+     * @param deviceId Id of the device which did not answer.
+     * @return The packet.
+     */
+    PacketData timeoutPacket(int deviceId) {
+        PacketData pktData = new PacketData();
+        pktData.type = PacketType.Timeout;
+        pktData.deviceId = deviceId;
+        return pktData;
+    }
+
+    //Static form of MSGMAXSIZE, which stays an instance field for compiled clients
+    static final int MSG_MAX_SIZE = 4096;
+    static final int PKTMAXSIZE = MSG_MAX_SIZE + 15;
+    public final int MSGMAXSIZE = MSG_MAX_SIZE;
+
+    AMASPTransport transport;
 
-    SerialPort serialCom;
+    final AMASPFrameEncoder encoder = new AMASPFrameEncoder(this);
+    final byte[] txBuf = new byte[PKTMAXSIZE];
+    private volatile AMASPFrameSender sender;
+    private final AMASPFrameDecoder decoder = new AMASPFrameDecoder(this);
+    private final byte[] rxBuf = new byte[PKTMAXSIZE];
+    private int rxPos;
+    private int rxEnd;
+    private long frameStartNanos;
+
+    private boolean eventDriven = false;
 
     /**
      * Establishes a serial connection.
@@ -165,29 +566,92 @@ public abstract class AMASPSerial {
      * @return True if the serial connection was stablished or false if not.
      */
     public boolean begin(SerialPort serialCom) {
-        this.serialCom = serialCom;
         if (serialCom != null) {
-            if (!serialCom.openPort()) {
-                return false;
-            }
-            return true;
+            return begin(new AMASPSerialPortTransport(serialCom));
         }
         else
         {
+            this.transport = null;
             return false;
         }
         
     }
 
+    /**
+     * Establishes a connection over any byte transport (serial port, pipe,
+     * socket or memory).
+     *
+     * @param transport The transport.
+     * @return True if the connection was stablished or false if not.
+     */
+    public boolean begin(AMASPTransport transport) {
+        this.transport = transport;
+        rxPos = 0;
+        rxEnd = 0;
+        decoder.reset();
+        if (transport != null) {
+            return transport.open();
+        }
+        return false;
+    }
+
     /**
      * Closes the serial connection.
      */
     public void end() {
-        if (serialCom != null) {
-            serialCom.closePort();
+        if (transport != null) {
+            transport.close();
         }
     }
 
+    /**
+     * @return The transport of the connection (null before begin()).
+     */
+    public AMASPTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Enables or disables the event driven receive mode.
+     *
+     * In this mode the reading thread sleeps until the transport signals
+     * that data has arrived (e.g. by the serial port events) instead of
+     * polling the port every millisecond. The wait for the rest of a packet
+     * is limited by a deadline computed from the byte time (baud rate) and the
+     * packet length plus the read timeout, and the wait for a new packet is
+     * limited by the read timeout.
+     *
+     * @param enable True to enable the event driven receive mode.
+     */
+    public void setEventDrivenReceive(boolean enable) {
+        eventDriven = enable;
+    }
+
+    /**
+     * @return True if the event driven receive mode is enabled.
+     */
+    public boolean isEventDrivenReceive() {
+        return eventDriven;
+    }
+
+    /**
+     * @return The time to transmit a byte in nanoseconds.
+     */
+    long byteTimeNanos() {
+        return transport.getByteTimeNanos();
+    }
+
+    /**
+     * Prepares a CEP packet to be sent with sendPrepared().
+     *
+     * @param deviceID Id of the target device in communication.
+     * @param errorCode The communication error code (0 to 255).
+     * @return The prepared packet.
+     */
+    public AMASPPreparedFrame prepareError(int deviceID, int errorCode) {
+        return cachedCode((byte) '~', PacketType.CEP, deviceID, errorCode);
+    }
+
     /**
      * Send a CEP packet (Communication Error Packet).
      *
@@ -196,37 +660,13 @@ public abstract class AMASPSerial {
      * @return The error check data.
      */
     public int sendError(int deviceID, int errorCode) {
-        byte[] hex;
-        byte[] pkt = new byte[14];
-        int ecd;
-
-        //Packet Type
-        pkt[0] = (byte) '!';
-        pkt[1] = (byte) '~';
-        //ECA
-        hex = String.format("%1$01X", errorCheckType.ordinal()).getBytes();
-        pkt[2] = (byte)hex[0];
-        //Device ID
-        hex = String.format("%1$03X", deviceID).getBytes();
-        pkt[3] = (byte) hex[0];
-        pkt[4] = (byte) hex[1];
-        pkt[5] = (byte) hex[2];
-        //Error Code       
-        hex = String.format("%1$02X", errorCode).getBytes();
-        pkt[6] = (byte) hex[0];
-        pkt[7] = (byte) hex[1];
-        //Error checking
-        ecd = errorCheck(pkt, 8, getErrorCheckType());
-        hex = String.format("%1$04X", ecd).getBytes();
-        pkt[8] = (byte) hex[0];
-        pkt[9] = (byte) hex[1];
-        pkt[10] = (byte) hex[2];
-        pkt[11] = (byte) hex[3];
-        //Packet End
-        pkt[12] = (byte) '\r';
-        pkt[13] = (byte) '\n';
-
-        serialCom.writeBytes(pkt, 14);
+        if (frameCache != null) {
+            return sendPrepared(cachedCode((byte) '~', PacketType.CEP, deviceID, errorCode));
+        }
+        AMASPFrameSender.Frame frame = acquireFrame();
+        int ecd = encoder.encodeCode(sendBuffer(frame), 0, (byte) '~', deviceID, errorCode);
+
+        writePacket(frame, AMASPFrameEncoder.CODE_PACKET_SIZE, PacketType.CEP, deviceID);
         return ecd; //Error check data
     }
 
@@ -238,186 +678,212 @@ public abstract class AMASPSerial {
      */
     public PacketData readPacket() {
         PacketData pktData = new PacketData();
-        byte[] buffer = new byte[PKTMAXSIZE];
-        byte[] auxBuf = new byte[PKTMAXSIZE - 9];
-        int aux;
-        ErrorCheckType eCheck;
-        double milisecPerByte = 1 / ((double) serialCom.getBaudRate() / 8000);
 
         pktData.type= PacketType.Timeout;
         pktData.deviceId = 0x000;
         pktData.codeLength = 0x000;
         pktData.message = null;
 
+        if (receiveFrame()) {
+            pktData.type = decoder.getType();
+            pktData.deviceId = decoder.getDeviceId();
+            pktData.codeLength = decoder.getCodeLength();
+            pktData.errorCheckType = decoder.getErrorCheckType();
+            pktData.errorCheckData = decoder.getErrorCheckData();
+            if (pktData.type == PacketType.MRP || pktData.type == PacketType.SRP) {
+                //Extracting message
+                pktData.message = Arrays.copyOfRange(decoder.getFrame(), 9, 9 + pktData.codeLength);
+            }
+        }
+        return pktData;
+    }
+
+    /**
+     * Check if a valid packet is available and read its message into a caller
+     * buffer (heap or direct), without intermediate arrays.
+     *
+     * The message of a MRP or SRP packet is put at the buffer position, which
+     * is advanced. If the buffer has not room for the whole message it is
+     * truncated (getCodeLength() still tells its length). The message of the
+     * returned PacketData is null.
+     *
+     * @param dst The buffer which receives the message.
+     * @return A PacketData Object which contains the information from a packet.
+     */
+    public PacketData readPacket(ByteBuffer dst) {
+        PacketData pktData = new PacketData();
+
+        pktData.type = PacketType.Timeout;
+        if (receiveFrame()) {
+            pktData.type = decoder.getType();
+            pktData.deviceId = decoder.getDeviceId();
+            pktData.codeLength = decoder.getCodeLength();
+            pktData.errorCheckType = decoder.getErrorCheckType();
+            pktData.errorCheckData = decoder.getErrorCheckData();
+            if (pktData.type == PacketType.MRP || pktData.type == PacketType.SRP) {
+                dst.put(decoder.getFrame(), AMASPPacket.MESSAGE_OFFSET, Math.min(pktData.codeLength, dst.remaining()));
+            }
+        }
+        return pktData;
+    }
+
+    /**
+     * Check if a valid packet is available and read it into a recyclable
+     * packet, without copying the message.
+     *
+     * The packet buffer is exchanged with the receive buffer of the decoder,
+     * so the message is available through views (see AMASPPacket) until the
+     * packet is released back to the pool.
+     *
+     * @param pool The pool which provides the packet.
+     * @return The packet (to be released by the caller) or null in timeout.
+     */
+    public AMASPPacket readPacket(AMASPPacketPool pool) {
+        if (!receiveFrame()) {
+            return null;
+        }
+        AMASPPacket packet = pool.acquire();
+        packet.set(decoder.getType(), decoder.getDeviceId(), decoder.getCodeLength(),
+                decoder.getErrorCheckType(), decoder.getErrorCheckData(),
+                decoder.swapFrame(packet.getFrame()));
+        return packet;
+    }
+
+    /**
+     * Reads until the decoder completes a packet.
+     *
+     * @return True if a packet is available in the decoder or false in
+     * timeout.
+     */
+    private boolean receiveFrame() {
         try {
-            while (serialCom.readBytes(buffer, 1) > 0) {
-                if (buffer[0] == '!') {
-                    //Reading packet type, crc check type and device ID bytes
-                    aux = 0;
-                    while (serialCom.bytesAvailable() < 5 && aux <= serialCom.getReadTimeout()) {
-                        aux++;
-                        Thread.currentThread().sleep(1);
+            while (decoder.hasPending() || rxPos < rxEnd || fillReceiveBuffer() > 0) {
+                if (decoder.isIdle()) {
+                    frameStartNanos = System.nanoTime();
+                }
+                rxPos += decoder.decode(rxBuf, rxPos, rxEnd - rxPos);
+                if (decoder.isFrameReady()) {
+                    AMASPMetrics m = metrics;
+                    if (m != null) {
+                        m.packetReceived(decoder.getType(), decoder.getDeviceId());
+                    }
+                    AMASPCapture c = capture;
+                    if (c != null) {
+                        //Metadata of the packet decoded from the raw bytes
+                        c.capture(AMASPCapture.Direction.Received, decoder.getType(), decoder.getDeviceId(),
+                                decoder.getFrame(), 0, decoder.getFrameSize());
                     }
-                    if (serialCom.readBytes(auxBuf, 5) == 5) {
-                        buffer[1] = auxBuf[0];//pkt type byte
-                        buffer[2] = auxBuf[1];//error check type byte
-                        buffer[3] = auxBuf[2];//device ID byte2
-                        buffer[4] = auxBuf[3];//device ID byte1
-                        buffer[5] = auxBuf[4];//devide ID byte0
-                        //Pre-check of ECA value
-                        if (buffer[2] < '0' || buffer[2] > '5')
-                        {
-                            //ECA no identified (ignore the packet) 
-                            pktData.type = PacketType.Timeout;
-                             return pktData;
-                        }
-                        //Extracting error check type                                   
-                        eCheck = errorCheckType.fromValue(buffer[2] - '0');
-                        
-                        //Extracting device ID                      
-                        try
-                        {
-                            pktData.deviceId = (Integer.parseInt(new String(Arrays.copyOfRange(buffer, 3, 6)), 16));
-                        }
-                        catch (Exception e)
-                        {
-                            //device ID extracting error
-                            return pktData;
-                        }
-                        switch (buffer[1]) {
-
-                            //MRP packet
-                            case (byte) '?':
-                                //Reading error check type, device ID and msg length
-                                aux = 0;
-                                while (serialCom.bytesAvailable() < 3 && aux <= serialCom.getReadTimeout()) {
-                                    aux++;
-                                    Thread.currentThread().sleep(1);
-                                }
-                                if (serialCom.readBytes(auxBuf, 3) == 3) {
-                                    System.arraycopy(auxBuf, 0, buffer, 6, 3);
-                                                                        
-                                    //Extracting message length
-                                    pktData.codeLength = (Integer.parseInt(new String(Arrays.copyOfRange(buffer, 6, 9)), 16));
-
-                                    //Reading message, error check data and end packet chars
-                                    aux = 0;
-                                    while (serialCom.bytesAvailable() <= (pktData.getCodeLength() + 6) && aux <= serialCom.getReadTimeout()) {
-                                        aux++;
-                                        Thread.currentThread().sleep(1);
-                                    }
-                                    if (serialCom.readBytes(auxBuf, pktData.getCodeLength() + 6) == pktData.getCodeLength() + 6) {
-                                        System.arraycopy(auxBuf, 0, buffer, 9, pktData.getCodeLength() + 6);
-                                        aux = Integer.parseInt(new String(Arrays.copyOfRange(buffer, pktData.getCodeLength() + 9, pktData.getCodeLength() + 13)), 16);
-                                        //checking for errors
-                                        if (aux == errorCheck(buffer, pktData.getCodeLength() + 9, eCheck)) {
-                                            //End chars checking
-                                            if (buffer[pktData.getCodeLength() + 13] == '\r' || buffer[pktData.getCodeLength() + 14] == '\n') {
-                                                //Extracting message
-                                                pktData.message = (new byte[pktData.getCodeLength()]);
-                                                System.arraycopy(buffer, 9, pktData.getMessage(), 0, pktData.getCodeLength());
-                                                pktData.type = (PacketType.MRP); //MRP recognized
-                                                pktData.errorCheckType = eCheck;
-                                                pktData.errorCheckData = aux;
-                                                return pktData;
-                                            }
-                                        }
-                                    }
-                                }
-                            break;
-                            //SRP packet
-                            case (byte) '#':
-                                //Reading error check type, device ID and msg length
-                                aux = 0;
-                                while (serialCom.bytesAvailable() < 3 && aux <= serialCom.getReadTimeout()) {
-                                    aux++;
-                                    Thread.currentThread().sleep(1);
-                                }
-                                if (serialCom.readBytes(auxBuf, 3) == 3) {
-                                    System.arraycopy(auxBuf, 0, buffer, 6, 3);
-                                                                        
-                                    //Extracting message length
-                                    pktData.codeLength = (Integer.parseInt(new String(Arrays.copyOfRange(buffer, 6, 9)), 16));
-
-                                    //Reading message, error check data and end packet chars
-                                    aux = 0;
-                                    while (serialCom.bytesAvailable() <= (pktData.getCodeLength() + 6) && aux <= serialCom.getReadTimeout()) {
-                                        aux++;
-                                        Thread.currentThread().sleep(1);
-                                    }
-                                    if (serialCom.readBytes(auxBuf, pktData.getCodeLength() + 6) == pktData.getCodeLength() + 6) {
-                                        System.arraycopy(auxBuf, 0, buffer, 9, pktData.getCodeLength() + 6);
-                                        aux = Integer.parseInt(new String(Arrays.copyOfRange(buffer, pktData.getCodeLength() + 9, pktData.getCodeLength() + 13)), 16);
-                                        //checking for errors
-                                        if (aux == errorCheck(buffer, pktData.getCodeLength() + 9, eCheck)) {
-                                            //End chars checking
-                                            if (buffer[pktData.getCodeLength() + 13] == '\r' || buffer[pktData.getCodeLength() + 14] == '\n') {
-                                                //Extracting message
-                                                pktData.message = (new byte[pktData.getCodeLength()]);
-                                                System.arraycopy(buffer, 9, pktData.getMessage(), 0, pktData.getCodeLength());
-                                                pktData.type = (PacketType.SRP); //MRP recognized
-                                                pktData.errorCheckType = eCheck;
-                                                pktData.errorCheckData = aux;
-                                                return pktData;
-                                            }
-                                        }
-                                    }
-                                }
-                            break;
-                            //CEP packet
-                            case (byte) '~':
-                                //Reading error code
-                                aux = 0;
-                                while (serialCom.bytesAvailable() < 8 && aux <= serialCom.getReadTimeout()) {
-                                    aux++;
-                                    Thread.currentThread().sleep(1);
-                                }
-                                if (serialCom.readBytes(auxBuf, 8) == 8) {
-                                    System.arraycopy(auxBuf, 0, buffer, 6, 8);
-                                    aux = Integer.parseInt(new String(Arrays.copyOfRange(buffer, 8, 12)), 16);
-                                    if (aux == errorCheck(buffer, 8, eCheck)) {
-                                        //Extraction errorCode
-                                        pktData.codeLength = (Integer.parseInt(new String(Arrays.copyOfRange(buffer, 6, 8)), 16));
-                                        pktData.errorCheckType = eCheck;
-                                        pktData.type = PacketType.CEP; //CEP recognized
-                                        pktData.errorCheckData = aux;
-                                        return pktData;
-                                    }
-                                }
-                                break;
-
-                            //SIP packet
-                            case (byte) '!':
-                                //Reading error code
-                                aux = 0;
-                                while (serialCom.bytesAvailable() < 8 && aux <= serialCom.getReadTimeout()) {
-                                    aux++;
-                                    Thread.currentThread().sleep(1);
-                                }
-                                if (serialCom.readBytes(auxBuf, 8) == 8) {
-                                    System.arraycopy(auxBuf, 0, buffer, 6, 8);
-                                    aux = Integer.parseInt(new String(Arrays.copyOfRange(buffer, 8, 12)), 16);
-                                    if (aux == errorCheck(buffer, 8, eCheck)) {
-                                        //Extraction errorCode
-                                        pktData.codeLength = (Integer.parseInt(new String(Arrays.copyOfRange(buffer, 6, 8)), 16));
-                                        pktData.errorCheckType = eCheck;
-                                        pktData.type = PacketType.SIP; //SIP recognized
-                                        pktData.errorCheckData = aux;
-                                        return pktData;
-                                    }
-                                }
-                                break;
-
-                            default:
-                                break;
-                        }
+                    AMASPErrorCheckPolicy p = errorCheckPolicy;
+                    if (p != null) {
+                        p.packetReceived(decoder.getDeviceId());
                     }
+                    return true;
                 }
             }
         } catch (Exception e) {
+            AMASPMetrics m = metrics;
+            if (m != null) {
+                m.decoderError(AMASPMetrics.DecoderError.Exception, null, 0);
+            }
+        }
+        //Incomplete packet (timeout)
+        decoder.reset();
+        return false;
+    }
 
+    /**
+     * Reads the available bytes into the receive buffer.
+     *
+     * While no packet is being received a single byte read is issued, so the
+     * timeouts of the serial port are honoured. Inside a packet the read waits
+     * up to the port read timeout for the remaining bytes. In the event driven
+     * receive mode the waits are done in awaitData().
+     *
+     * @return The number of bytes read (0 or less in timeout or error).
+     */
+    private int fillReceiveBuffer() throws InterruptedException {
+        int available = transport.bytesAvailable();
+
+        rxPos = 0;
+        rxEnd = 0;
+        if (available <= 0) {
+            if (eventDriven) {
+                long deadline = TimeUnit.MILLISECONDS.toNanos(transport.getReadTimeout());
+                if (decoder.isIdle()) {
+                    deadline += System.nanoTime();
+                } else {
+                    //Expected end of the packet plus the read timeout as margin
+                    deadline += frameStartNanos + decoder.getExpectedSize() * byteTimeNanos();
+                }
+                if (!awaitData(deadline)) {
+                    return 0;
+                }
+                available = transport.bytesAvailable();
+            } else if (decoder.isIdle()) {
+                //Waiting for a packet start
+                rxEnd = Math.max(transport.read(rxBuf, 1), 0);
+                captureReceived();
+                return rxEnd;
+            }
+            //Waiting for the rest of the packet
+            for (int aux = 0; available <= 0 && aux <= transport.getReadTimeout(); aux++) {
+                Thread.sleep(1);
+                available = transport.bytesAvailable();
+            }
+            if (available <= 0) {
+                return 0;
+            }
+        }
+        rxEnd = Math.max(transport.read(rxBuf, Math.min(available, rxBuf.length)), 0);
+        captureReceived();
+        return rxEnd;
+    }
+
+    /**
+     * Records the bytes just read, before decoding, so the capture keeps the
+     * noise and the rejected packets as well.
+     */
+    private void captureReceived() {
+        AMASPCapture c = capture;
+        if (c != null && rxEnd > 0) {
+            c.capture(AMASPCapture.Direction.Received, null, 0, rxBuf, 0, rxEnd);
         }
-        return pktData;
+    }
+
+    /**
+     * Waits until there are received bytes to be read, so a reading loop
+     * does not need to spin on readPacket() when the bus is idle.
+     *
+     * @param timeoutNanos The maximum waiting time in nanoseconds.
+     * @return True if there are bytes to be read.
+     */
+    boolean waitForData(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        if (rxPos < rxEnd || decoder.hasPending()) {
+            return true;
+        }
+        if (eventDriven) {
+            return awaitData(deadline);
+        }
+        while (transport.bytesAvailable() <= 0) {
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the transport signals received bytes.
+     *
+     * @param deadline The System.nanoTime() value when the wait expires.
+     * @return True if there are bytes available to read.
+     */
+    private boolean awaitData(long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        return remaining > 0 && transport.awaitData(remaining);
     }
 
     
@@ -483,8 +949,25 @@ public abstract class AMASPSerial {
         
     }
 
+    /**
+     * Computes the error check data of bytes which do not start at the
+     * beginning of the buffer.
+     */
+    int errorCheck(byte[] data, int offset, int dataLength, ErrorCheckType eCheckType) {
+        if (errorCheckEngine != null) {
+            return errorCheckEngine.check(eCheckType, data, offset, dataLength);
+        }
+        if (offset != 0) {
+            data = Arrays.copyOfRange(data, offset, offset + dataLength);
+        }
+        return errorCheck(data, dataLength, eCheckType);
+    }
+
     protected int errorCheck(byte[] data, int dataLength, ErrorCheckType eCheckType) {
         int ret;
+        if (errorCheckEngine != null) {
+            return errorCheckEngine.check(eCheckType, data, 0, dataLength);
+        }
         switch (eCheckType) {
             case XOR8:
                 ret = XORCheck(data, dataLength);
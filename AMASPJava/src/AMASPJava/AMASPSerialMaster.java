@@ -17,6 +17,9 @@
 */
 package AMASPJava;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 /**
  * AMASP Master class
  * @author Andre L. Delai
@@ -34,54 +37,45 @@ public class AMASPSerialMaster extends AMASPSerial
      */
     public int sendRequest(int deviceId, byte message[], int msgLength)
     {
-        byte[] hex;
         int ecd;
+        AMASPFrameSender.Frame frame;
         
+        if (frameCache != null)
+        {
+            return sendPrepared(cachedData((byte) '?', PacketType.MRP, deviceId, message, msgLength));
+        }
         if (message.length < msgLength)
         {
             msgLength = message.length; //saturating
         }
-
-        //mounting the packet
-        byte[] pkt = new byte[msgLength + 15];
-        //Packet Type
-        pkt[0] = (byte) '!';
-        pkt[1] = (byte) '?';
-        //ECA
-        hex = String.format("%1$01X", getErrorCheckType().ordinal()).getBytes();
-        pkt[2] = (byte)hex[0];
-        //Device ID
-        hex = String.format("%1$03X", deviceId).getBytes();
-        pkt[3] = (byte) hex[0];
-        pkt[4] = (byte) hex[1];
-        pkt[5] = (byte) hex[2];
-        //Message Length
-        hex = String.format("%1$03X", msgLength).getBytes();
-        pkt[6] = (byte) hex[0];
-        pkt[7] = (byte) hex[1];
-        pkt[8] = (byte) hex[2];
-        //Message (payload)
-        for (int i = 0; i < msgLength; i++)
+        if (msgLength > MSGMAXSIZE)
         {
-            pkt[9 + i] = (byte) message[i];
+            msgLength = MSGMAXSIZE; //saturating
         }
-        //Error checking 
-        ecd = errorCheck(pkt, msgLength + 9, getErrorCheckType());
-        hex = String.format("%1$04X", ecd).getBytes();
-        pkt[9 + msgLength] = (byte) hex[0];
-        pkt[9 + msgLength + 1] = (byte) hex[1];
-        pkt[9 + msgLength + 2] = (byte) hex[2];
-        pkt[9 + msgLength + 3] = (byte) hex[3];
-        //Packet End
-        pkt[9 + msgLength + 4] = (byte) '\r';
-        pkt[9 + msgLength + 5] = (byte) '\n';
+
+        //mounting the packet
+        frame = acquireFrame();
+        ecd = encoder.encodeData(sendBuffer(frame), 0, (byte) '?', deviceId, message, 0, msgLength);
 
         //Sending request
-        serialCom.writeBytes(pkt, 15 + msgLength);
+        writePacket(frame, AMASPFrameEncoder.DATA_OVERHEAD + msgLength, PacketType.MRP, deviceId);
         return ecd;
     }
 
-    
+
+    /**
+     * Prepares a MRP packet to be sent many times with sendPrepared(), e.g.
+     * by a polling loop.
+     * @param deviceId Id of the requested device in slave.
+     * @param message The message in bytes to be send.
+     * @param msgLength The message length.
+     * @return The prepared packet.
+     */
+    public AMASPPreparedFrame prepareRequest(int deviceId, byte message[], int msgLength)
+    {
+        return cachedData((byte) '?', PacketType.MRP, deviceId, message, msgLength);
+    }
+
     /**
      * Send a MRP packet to a slave computer.
      * @param deviceID Id of the requested device in slave. 
@@ -93,4 +87,41 @@ public class AMASPSerialMaster extends AMASPSerial
     {       
         return sendRequest(deviceID, message.getBytes(), msgLength);
     }
+
+    /**
+     * Send a MRP packet with the remaining bytes of a buffer (heap or
+     * direct), which are consumed. Up to MSGMAXSIZE bytes are sent.
+     * @param deviceId Id of the requested device in slave.
+     * @param message The request message.
+     * @return The error check data.
+     */
+    public int sendRequest(int deviceId, ByteBuffer message)
+    {
+        AMASPFrameSender.Frame frame = acquireFrame();
+        return sendData(frame, (byte) '?', PacketType.MRP, deviceId, putMessage(sendBuffer(frame), message));
+    }
+
+    /**
+     * Send a MRP packet with a string encoded in an explicit charset. ASCII
+     * strings in US-ASCII, ISO-8859-1 or UTF-8 are sent without allocating.
+     * @param deviceId Id of the requested device in slave.
+     * @param message The request message.
+     * @param charset The charset of the message.
+     * @return The error check data.
+     */
+    public int sendRequest(int deviceId, String message, Charset charset)
+    {
+        AMASPFrameSender.Frame frame = acquireFrame();
+        return sendData(frame, (byte) '?', PacketType.MRP, deviceId, putMessage(sendBuffer(frame), message, charset));
+    }
+
+    /**
+     * Creates a batch to send several MRP or CEP packets in a single write.
+     * @param capacity The batch buffer size in bytes.
+     * @return The batch.
+     */
+    public AMASPFrameBatch newBatch(int capacity)
+    {
+        return new AMASPFrameBatch(this, capacity);
+    }
 }
@@ -0,0 +1,157 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transport over a jSerialComm serial port.
+ *
+ * awaitData() registers a data available listener in the port the first time
+ * it is called, so the waiting thread is woken up by the port events instead
+ * of polling the port.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPSerialPortTransport implements AMASPTransport {
+
+    private final SerialPort serialCom;
+    private volatile boolean dataListenerAdded = false;
+    private final ReentrantLock rxLock = new ReentrantLock();
+    private final Condition rxDataAvailable = rxLock.newCondition();
+
+    /**
+     * @param serialCom A JSerialComm object to serial communication.
+     */
+    public AMASPSerialPortTransport(SerialPort serialCom) {
+        this.serialCom = serialCom;
+    }
+
+    /**
+     * @return The JSerialComm object.
+     */
+    public SerialPort getSerialPort() {
+        return serialCom;
+    }
+
+    @Override
+    public boolean open() {
+        return serialCom.openPort();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (dataListenerAdded) {
+            serialCom.removeDataListener();
+            dataListenerAdded = false;
+        }
+        serialCom.closePort();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return serialCom.isOpen();
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return serialCom.bytesAvailable();
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) {
+        return serialCom.readBytes(buffer, length);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        return serialCom.writeBytes(buffer, length);
+    }
+
+    @Override
+    public boolean awaitData(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        addDataListener();
+        rxLock.lock();
+        try {
+            while (serialCom.bytesAvailable() <= 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (dataListenerAdded) {
+                    rxDataAvailable.awaitNanos(remaining);
+                } else {
+                    //No port events, polling
+                    rxDataAvailable.awaitNanos(Math.min(remaining, 1000000L));
+                }
+            }
+            return true;
+        } finally {
+            rxLock.unlock();
+        }
+    }
+
+    private synchronized void addDataListener() {
+        if (!dataListenerAdded) {
+            dataListenerAdded = serialCom.addDataListener(new SerialPortDataListener() {
+                @Override
+                public int getListeningEvents() {
+                    return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+                }
+
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    rxLock.lock();
+                    try {
+                        rxDataAvailable.signalAll();
+                    } finally {
+                        rxLock.unlock();
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return serialCom.getReadTimeout();
+    }
+
+    /**
+     * Computes the transmission time of a single byte (character) in the
+     * current serial configuration, including start, parity and stop bits.
+     *
+     * @return The time to transmit a byte in nanoseconds.
+     */
+    @Override
+    public long getByteTimeNanos() {
+        int bits = 1 + serialCom.getNumDataBits();
+        if (serialCom.getParity() != SerialPort.NO_PARITY) {
+            bits++;
+        }
+        bits += (serialCom.getNumStopBits() == SerialPort.ONE_STOP_BIT) ? 1 : 2;
+        return bits * 1000000000L / Math.max(serialCom.getBaudRate(), 1);
+    }
+}
@@ -17,6 +17,9 @@
 */
 package AMASPJava;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 /**
  * AMASP Slave class
  * @author delai
@@ -34,51 +37,28 @@ public class AMASPSerialSlave extends AMASPSerial
      */
     public int sendResponse(int deviceId, byte[] message, int msgLength)
     {
-        byte[] hex;
         int ecd;
+        AMASPFrameSender.Frame frame;
         
+        if (frameCache != null)
+        {
+            return sendPrepared(cachedData((byte) '#', PacketType.SRP, deviceId, message, msgLength));
+        }
         if (message.length < msgLength)
         {
             msgLength = message.length; //saturating
         }
-
-        //mounting the packet
-        byte[] pkt = new byte[msgLength + 15];
-
-        //Packet Type
-        pkt[0] = (byte) '!';
-        pkt[1] = (byte) '#';
-        //ECA
-        hex = String.format("%1$01X", getErrorCheckType().ordinal()).getBytes();
-        pkt[2] = (byte)hex[0];
-        //Device ID
-        hex = String.format("%1$03X", deviceId).getBytes();
-        pkt[3] = (byte) hex[0];
-        pkt[4] = (byte) hex[1];
-        pkt[5] = (byte) hex[2];
-        //Message Length
-        hex = String.format("%1$03X", msgLength).getBytes();
-        pkt[6] = (byte) hex[0];
-        pkt[7] = (byte) hex[1];
-        pkt[8] = (byte) hex[2];
-        //Message (payload)
-        for (int i = 0; i < msgLength; i++)
+        if (msgLength > MSGMAXSIZE)
         {
-            pkt[9 + i] = (byte) message[i];
+            msgLength = MSGMAXSIZE; //saturating
         }
-        //Error checking
-        ecd = errorCheck(pkt, msgLength + 9, getErrorCheckType());
-        hex = String.format("%1$04X", ecd).getBytes();
-        pkt[9 + msgLength] = (byte) hex[0];
-        pkt[9 + msgLength + 1] = (byte) hex[1];
-        pkt[9 + msgLength + 2] = (byte) hex[2];
-        pkt[9 + msgLength + 3] = (byte) hex[3];
-        //Packet End
-        pkt[9 + msgLength + 4] = (byte) '\r';
-        pkt[9 + msgLength + 5] = (byte) '\n';
 
-        //Sending request
-        serialCom.writeBytes(pkt, 15 + msgLength);
+        //mounting the packet
+        frame = acquireFrame();
+        ecd = encoder.encodeData(sendBuffer(frame), 0, (byte) '#', deviceId, message, 0, msgLength);
+
+        //Sending response
+        writePacket(frame, AMASPFrameEncoder.DATA_OVERHEAD + msgLength, PacketType.SRP, deviceId);
         return ecd;
     }
     
@@ -94,6 +74,33 @@ public class AMASPSerialSlave extends AMASPSerial
         return sendResponse(deviceID, message.getBytes(), msgLength);
     }
     
+    /**
+     * Send a SRP packet with the remaining bytes of a buffer (heap or
+     * direct), which are consumed. Up to MSGMAXSIZE bytes are sent.
+     * @param deviceId Id of the slave device who answered.
+     * @param message The response message.
+     * @return The error check data.
+     */
+    public int sendResponse(int deviceId, ByteBuffer message)
+    {
+        AMASPFrameSender.Frame frame = acquireFrame();
+        return sendData(frame, (byte) '#', PacketType.SRP, deviceId, putMessage(sendBuffer(frame), message));
+    }
+
+    /**
+     * Send a SRP packet with a string encoded in an explicit charset. ASCII
+     * strings in US-ASCII, ISO-8859-1 or UTF-8 are sent without allocating.
+     * @param deviceId Id of the slave device who answered.
+     * @param message The response message.
+     * @param charset The charset of the message.
+     * @return The error check data.
+     */
+    public int sendResponse(int deviceId, String message, Charset charset)
+    {
+        AMASPFrameSender.Frame frame = acquireFrame();
+        return sendData(frame, (byte) '#', PacketType.SRP, deviceId, putMessage(sendBuffer(frame), message, charset));
+    }
+
     /**
      * Send a SIP (Slave Interrupt Packet). 
      * @param deviceID Id of the slave device who generated the interruption.
@@ -102,38 +109,47 @@ public class AMASPSerialSlave extends AMASPSerial
      */
     public int sendInterruption(int deviceID, int InterrupCode)
     {
-        byte[] hex;
-        byte[] pkt = new byte[14];
-        int ecd;
-
-        //Packet Type
-        pkt[0] = (byte) '!';
-        pkt[1] = (byte) '!';
-        //ECA
-        hex = String.format("%1$01X", getErrorCheckType().ordinal()).getBytes();
-        pkt[2] = (byte)hex[0];
-        //Device ID
-        hex = String.format("%1$03X", deviceID).getBytes();
-        pkt[3] = (byte) hex[0];
-        pkt[4] = (byte) hex[1];
-        pkt[5] = (byte) hex[2];
-        //Error Code       
-        hex = String.format("%1$02X", InterrupCode).getBytes();
-        pkt[6] = (byte) hex[0];
-        pkt[7] = (byte) hex[1];
-        //CRC
-        ecd = errorCheck(pkt, 8, getErrorCheckType());
-        hex = String.format("%1$04X", ecd).getBytes();
-        pkt[8] = (byte) hex[0];
-        pkt[9] = (byte) hex[1];
-        pkt[10] = (byte) hex[2];
-        pkt[11] = (byte) hex[3];
-        //Packet End
-        pkt[12] = (byte) '\r';
-        pkt[13] = (byte) '\n';
+        if (frameCache != null)
+        {
+            return sendPrepared(cachedCode((byte) '!', PacketType.SIP, deviceID, InterrupCode));
+        }
+        AMASPFrameSender.Frame frame = acquireFrame();
+        int ecd = encoder.encodeCode(sendBuffer(frame), 0, (byte) '!', deviceID, InterrupCode);
         
-        serialCom.writeBytes(pkt, 14);
+        writePacket(frame, AMASPFrameEncoder.CODE_PACKET_SIZE, PacketType.SIP, deviceID);
         return ecd;
     }
 
+    /**
+     * Prepares a SRP packet to be sent many times with sendPrepared().
+     * @param deviceId Id of the slave device who answered.
+     * @param message The response message in bytes.
+     * @param msgLength The message length.
+     * @return The prepared packet.
+     */
+    public AMASPPreparedFrame prepareResponse(int deviceId, byte[] message, int msgLength)
+    {
+        return cachedData((byte) '#', PacketType.SRP, deviceId, message, msgLength);
+    }
+
+    /**
+     * Prepares a SIP packet to be sent many times with sendPrepared().
+     * @param deviceID Id of the slave device who generated the interruption.
+     * @param InterrupCode The code of the interruption (0 to 255).
+     * @return The prepared packet.
+     */
+    public AMASPPreparedFrame prepareInterruption(int deviceID, int InterrupCode)
+    {
+        return cachedCode((byte) '!', PacketType.SIP, deviceID, InterrupCode);
+    }
+
+    /**
+     * Creates a batch to send several SRP, SIP or CEP packets in a single write.
+     * @param capacity The batch buffer size in bytes.
+     * @return The batch.
+     */
+    public AMASPFrameBatch newBatch(int capacity)
+    {
+        return new AMASPFrameBatch(this, capacity);
+    }
 }
@@ -0,0 +1,273 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Request dispatch server for an AMASP slave.
+ *
+ * The MRP packets read by a background reader (AMASPReader) are dispatched to
+ * the handler of their device ID, found in a flat table indexed by the device
+ * ID (0x000 to 0xFFF). The handlers run in a pool of workers, so a slow
+ * device does not block the others, and all packets are sent by a single
+ * writer thread. The requests of each device are handled one at a time and
+ * in order, since a master matches the responses of a device to its requests
+ * in order.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPSlaveServer implements AMASPReader.PacketListener {
+
+    /**
+     * Handler of the requests to a slave device.
+     */
+    public interface RequestHandler {
+
+        /**
+         * Called from a worker thread for every MRP packet to the device.
+         *
+         * @param request The MRP packet.
+         * @return The message of the SRP packet or null to not respond.
+         */
+        byte[] handleRequest(PacketData request);
+    }
+
+    private static final int DEVICES = 0x1000;
+
+    private final AMASPSerialSlave slave;
+    private final AMASPReader reader;
+    private final AtomicReferenceArray<RequestHandler> handlers = new AtomicReferenceArray<>(DEVICES);
+    private final AtomicReferenceArray<DeviceQueue> queues = new AtomicReferenceArray<>(DEVICES);
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int queueCapacity;
+    private final ExecutorService workers;
+    private final ExecutorService writer;
+    private volatile int unknownDeviceErrorCode = -1;
+    private volatile int busyErrorCode = -1;
+
+    /**
+     * @param slave The AMASP slave (already connected with begin()).
+     * @param workerThreads Number of worker threads.
+     * @param queueCapacity Maximum number of requests waiting for a worker
+     * (of all devices).
+     */
+    public AMASPSlaveServer(AMASPSerialSlave slave, int workerThreads, int queueCapacity) {
+        this.slave = slave;
+        this.reader = new AMASPReader(slave);
+        this.queueCapacity = queueCapacity;
+        //At most one task per device is waiting, the requests are bounded by queueCapacity
+        this.workers = Executors.newFixedThreadPool(workerThreads, daemonThreads("AMASPSlaveServer-worker"));
+        this.writer = Executors.newSingleThreadExecutor(daemonThreads("AMASPSlaveServer-writer"));
+    }
+
+    //Requests of a device waiting for a worker
+    private static final class DeviceQueue {
+
+        final int deviceId;
+        final ArrayDeque<PacketData> requests = new ArrayDeque<>();
+        boolean scheduled = false;
+
+        DeviceQueue(int deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @return The AMASP slave.
+     */
+    public AMASPSerialSlave getSlave() {
+        return slave;
+    }
+
+    /**
+     * @return The background reader (to register other packet listeners).
+     */
+    public AMASPReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Sets the handler of a device.
+     *
+     * @param deviceId Id of the device (0x000 to 0xFFF).
+     * @param handler The handler or null to remove it.
+     */
+    public void setHandler(int deviceId, RequestHandler handler) {
+        if (handler != null) {
+            queues.compareAndSet(deviceId, null, new DeviceQueue(deviceId));
+        }
+        handlers.set(deviceId, handler);
+    }
+
+    /**
+     * Sets the error code of the CEP packet sent in response to requests to
+     * devices without handler.
+     *
+     * @param errorCode The error code (0 to 255) or -1 to not respond.
+     */
+    public void setUnknownDeviceErrorCode(int errorCode) {
+        unknownDeviceErrorCode = errorCode;
+    }
+
+    /**
+     * Sets the error code of the CEP packet sent in response to requests
+     * which do not fit in the worker queue.
+     *
+     * @param errorCode The error code (0 to 255) or -1 to not respond.
+     */
+    public void setBusyErrorCode(int errorCode) {
+        busyErrorCode = errorCode;
+    }
+
+    /**
+     * Starts serving the requests.
+     */
+    public void start() {
+        reader.addListener(this);
+        reader.start();
+    }
+
+    /**
+     * Stops serving the requests and releases the worker and writer threads.
+     * The server can not be started again.
+     */
+    public void stop() {
+        reader.removeListener(this);
+        reader.stop();
+        workers.shutdown();
+        writer.shutdown();
+    }
+
+    /**
+     * Sends a SIP packet through the writer thread, so it is not interleaved
+     * with the responses. Ignored after stop().
+     *
+     * @param deviceId Id of the slave device who generated the interruption.
+     * @param interrupCode The code of the interruption (0 to 255).
+     */
+    public void sendInterruption(int deviceId, int interrupCode) {
+        write(() -> slave.sendInterruption(deviceId, interrupCode));
+    }
+
+    /**
+     * Dispatches the MRP packets to the handlers.
+     */
+    @Override
+    public void packetReceived(PacketData packet) {
+        if (packet.getType() != PacketType.MRP) {
+            return;
+        }
+        int deviceId = packet.getDeviceId();
+        DeviceQueue queue = queues.get(deviceId);
+        if (queue == null || handlers.get(deviceId) == null) {
+            sendError(deviceId, unknownDeviceErrorCode);
+            return;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            sendError(deviceId, busyErrorCode);
+            return;
+        }
+        boolean schedule;
+        synchronized (queue) {
+            queue.requests.addLast(packet);
+            schedule = !queue.scheduled;
+            queue.scheduled = true;
+        }
+        if (schedule) {
+            schedule(queue);
+        }
+    }
+
+    private void schedule(DeviceQueue queue) {
+        try {
+            workers.execute(() -> handleNext(queue));
+        } catch (RejectedExecutionException e) {
+            //Server stopped
+        }
+    }
+
+    /**
+     * Handles the oldest request of a device, then schedules the device again
+     * if it has more requests (so the workers are shared between devices).
+     */
+    private void handleNext(DeviceQueue queue) {
+        PacketData request;
+        synchronized (queue) {
+            request = queue.requests.pollFirst();
+        }
+        queued.decrementAndGet();
+        RequestHandler handler = handlers.get(queue.deviceId);
+        if (handler != null) {
+            handle(handler, request);
+        }
+        boolean more;
+        synchronized (queue) {
+            more = !queue.requests.isEmpty();
+            queue.scheduled = more;
+        }
+        if (more) {
+            schedule(queue);
+        }
+    }
+
+    private void handle(RequestHandler handler, PacketData request) {
+        byte[] response;
+        try {
+            response = handler.handleRequest(request);
+        } catch (RuntimeException e) {
+            return; //The handler failed, no response
+        }
+        if (response != null) {
+            write(() -> slave.sendResponse(request.getDeviceId(), response, response.length));
+        }
+    }
+
+    private void sendError(int deviceId, int errorCode) {
+        if (errorCode >= 0) {
+            write(() -> slave.sendError(deviceId, errorCode));
+        }
+    }
+
+    private void write(Runnable packet) {
+        try {
+            writer.execute(packet);
+        } catch (RejectedExecutionException e) {
+            //Server stopped, the packet is dropped
+        }
+    }
+}
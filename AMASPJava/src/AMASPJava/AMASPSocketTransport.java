@@ -0,0 +1,244 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport over a non-blocking TCP socket channel, e.g. to a serial-over-IP
+ * converter or to a peer in another process.
+ *
+ * The received bytes are staged in a direct buffer. awaitData() waits in a
+ * selector, so the reading thread wakes up as soon as bytes arrive.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPSocketTransport implements AMASPTransport {
+
+    private final SocketAddress address;
+    private SocketChannel channel;
+    private Selector readSelector;
+    private Selector writeSelector;
+    private final ByteBuffer rxStage = ByteBuffer.allocateDirect(8192);
+    private byte[] txArray;
+    private ByteBuffer txWrap;
+    private volatile boolean open = false;
+    private volatile int readTimeout = 100;
+    private volatile int writeTimeout = 1000;
+    private volatile long byteTimeNanos = 0;
+
+    /**
+     * @param address The address to connect to in open().
+     */
+    public AMASPSocketTransport(SocketAddress address) {
+        this.address = address;
+        rxStage.flip();
+    }
+
+    /**
+     * @param channel A connected channel (e.g. accepted by a server).
+     */
+    public AMASPSocketTransport(SocketChannel channel) {
+        this.address = null;
+        this.channel = channel;
+        rxStage.flip();
+    }
+
+    /**
+     * Sets the read timeout.
+     *
+     * @param readTimeout The read timeout in milliseconds (100 by default).
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the maximum time a write waits for the socket to accept data.
+     *
+     * @param writeTimeout The write timeout in milliseconds (1000 by
+     * default).
+     */
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Sets the byte time, e.g. of the serial line behind a converter.
+     *
+     * @param byteTimeNanos The time to transmit a byte in nanoseconds (0 by
+     * default).
+     */
+    public void setByteTimeNanos(long byteTimeNanos) {
+        this.byteTimeNanos = byteTimeNanos;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        if (open) {
+            return true;
+        }
+        try {
+            if (channel == null) {
+                channel = SocketChannel.open(address);
+            }
+            channel.configureBlocking(false);
+            readSelector = Selector.open();
+            writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+            open = true;
+        } catch (IOException e) {
+            close();
+        }
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (readSelector != null) {
+                readSelector.close();
+            }
+            if (writeSelector != null) {
+                writeSelector.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Reads the bytes received by the socket into the stage buffer, without
+     * waiting.
+     *
+     * @return The number of staged bytes, or -1 in error or end of stream.
+     */
+    private int fillStage() {
+        if (rxStage.hasRemaining()) {
+            return rxStage.remaining();
+        }
+        try {
+            rxStage.clear();
+            int n = channel.read(rxStage);
+            rxStage.flip();
+            return (n < 0) ? -1 : rxStage.remaining();
+        } catch (IOException e) {
+            rxStage.clear().flip();
+            return -1;
+        }
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return open ? fillStage() : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) {
+        int n = bytesAvailable();
+        if (n == 0) {
+            try {
+                awaitData(TimeUnit.MILLISECONDS.toNanos(readTimeout));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            n = bytesAvailable();
+        }
+        if (n <= 0) {
+            return n;
+        }
+        n = Math.min(n, length);
+        rxStage.get(buffer, 0, n);
+        return n;
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        if (!open) {
+            return -1;
+        }
+        //The wrapper is kept while the same buffer is written
+        if (txArray != buffer) {
+            txArray = buffer;
+            txWrap = ByteBuffer.wrap(buffer);
+        }
+        txWrap.clear().limit(length);
+        try {
+            while (txWrap.hasRemaining()) {
+                if (channel.write(txWrap) == 0) {
+                    if (writeSelector.select(writeTimeout) == 0) {
+                        break;
+                    }
+                    writeSelector.selectedKeys().clear();
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return txWrap.position();
+    }
+
+    @Override
+    public boolean awaitData(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        int n;
+        while ((n = bytesAvailable()) == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                readSelector.select(Math.max(TimeUnit.NANOSECONDS.toMillis(remaining), 1));
+                readSelector.selectedKeys().clear();
+            } catch (IOException e) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return n > 0;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public long getByteTimeNanos() {
+        return byteTimeNanos;
+    }
+}
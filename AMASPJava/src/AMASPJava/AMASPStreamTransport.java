@@ -0,0 +1,187 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport over a pair of byte streams, such as a pipe, the standard
+ * streams of a process or a Linux pseudo-terminal (see openDevice()).
+ *
+ * A daemon pump thread does the blocking reads of the input stream into a
+ * ring buffer, so bytesAvailable() never blocks, read() waits at most the
+ * read timeout and awaitData() wakes up as soon as bytes arrive.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPStreamTransport implements AMASPTransport {
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final AMASPByteRing rx;
+    private volatile boolean open = false;
+    private volatile int readTimeout = 100;
+    private volatile long byteTimeNanos = 0;
+
+    /**
+     * @param in The stream of the received bytes.
+     * @param out The stream of the sent bytes.
+     * @param capacity The capacity in bytes of the receive buffer.
+     */
+    public AMASPStreamTransport(InputStream in, OutputStream out, int capacity) {
+        this.in = in;
+        this.out = out;
+        this.rx = new AMASPByteRing(capacity);
+    }
+
+    /**
+     * Creates a transport over a character device or named pipe, such as the
+     * slave side of a Linux pseudo-terminal (/dev/pts/N) created by socat or
+     * a serial-over-IP driver.
+     *
+     * A terminal device must already be in raw mode (e.g. stty -F path raw
+     * -echo), as the file API can not configure it: otherwise the terminal
+     * echoes the received bytes and translates CR to LF (ICRNL), which
+     * corrupts the packets.
+     *
+     * @param path The device path.
+     * @return The transport (not open yet).
+     * @throws IOException If the device could not be opened.
+     */
+    public static AMASPStreamTransport openDevice(String path) throws IOException {
+        RandomAccessFile device = new RandomAccessFile(path, "rw");
+        //Separate streams over the same descriptor, a read does not block the writes
+        return new AMASPStreamTransport(new FileInputStream(device.getFD()), new FileOutputStream(device.getFD()), 65536);
+    }
+
+    /**
+     * Sets the read timeout.
+     *
+     * @param readTimeout The read timeout in milliseconds (100 by default).
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Sets the byte time, e.g. of the serial line behind a pseudo-terminal.
+     *
+     * @param byteTimeNanos The time to transmit a byte in nanoseconds (0 by
+     * default).
+     */
+    public void setByteTimeNanos(long byteTimeNanos) {
+        this.byteTimeNanos = byteTimeNanos;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        if (open || rx.isClosed()) {
+            return open;
+        }
+        open = true;
+        Thread pump = new Thread(this::pump, "AMASPStreamTransport-pump");
+        pump.setDaemon(true);
+        pump.start();
+        return true;
+    }
+
+    private void pump() {
+        byte[] chunk = new byte[4096];
+        try {
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                if (rx.write(chunk, 0, n) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            //End of the stream
+        }
+        rx.close();
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        rx.close();
+        try {
+            in.close();
+        } catch (IOException e) {
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return rx.available();
+    }
+
+    @Override
+    public int read(byte[] buffer, int length) {
+        try {
+            if (rx.available() == 0) {
+                rx.awaitData(TimeUnit.MILLISECONDS.toNanos(readTimeout));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        return rx.read(buffer, 0, length);
+    }
+
+    @Override
+    public int write(byte[] buffer, int length) {
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean awaitData(long timeoutNanos) throws InterruptedException {
+        return rx.awaitData(timeoutNanos);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @Override
+    public long getByteTimeNanos() {
+        return byteTimeNanos;
+    }
+}
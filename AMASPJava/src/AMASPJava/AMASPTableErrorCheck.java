@@ -0,0 +1,175 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+
+/**
+ * Table driven and unrolled implementation of the AMASP error checking
+ * algorithms.
+ *
+ * The results are bit-identical to the reference (bit-wise) algorithms of
+ * AMASPSerial. Those algorithms work on signed bytes, so the data bytes are
+ * sign extended here as well.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public final class AMASPTableErrorCheck implements AMASPErrorCheckEngine {
+
+    private static final AMASPTableErrorCheck INSTANCE = new AMASPTableErrorCheck();
+
+    //CRC16 Modbus (polynomial 0xA001, reflected) table
+    private static final int[] CRC16_TABLE = new int[256];
+
+    //Fletcher16 bytes per block, the sums can not overflow inside a block
+    private static final int FLETCHER_BLOCK = 4096;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x0001) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            CRC16_TABLE[i] = crc;
+        }
+    }
+
+    private AMASPTableErrorCheck() {
+    }
+
+    /**
+     * @return The shared (stateless) instance.
+     */
+    public static AMASPTableErrorCheck getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public int check(ErrorCheckType eCheckType, byte[] data, int offset, int dataLength) {
+        switch (eCheckType) {
+            case XOR8:
+                return xor8(data, offset, dataLength);
+            case checksum16:
+                return checksum16(data, offset, dataLength);
+            case LRC16:
+                return lrc16(data, offset, dataLength);
+            case fletcher16:
+                return fletcher16(data, offset, dataLength);
+            case CRC16:
+                return crc16Modbus(data, offset, dataLength);
+            default:
+                return 0x00;
+        }
+    }
+
+    /**
+     * CRC16 Modbus with a 256 entries table.
+     *
+     * The reference algorithm XORs the sign extended byte into an int and
+     * shifts it arithmetically, so after an odd number of negative bytes the
+     * upper half of the CRC is all ones and ones are shifted into bit 15.
+     * That state is kept in fill (crc is kept below 0x10000 in the loop,
+     * so the upper half of x tells if the state toggles).
+     */
+    static int crc16Modbus(byte[] data, int offset, int dataLength) {
+        int crc = 0xFFFF;
+        int fill = 0;
+        for (int i = offset; i < offset + dataLength; i++) {
+            int x = crc ^ data[i];
+            fill ^= (x >> 8) & 0xFF00;
+            x &= 0xFFFF;
+            crc = ((x >>> 8) | fill) ^ CRC16_TABLE[x & 0xFF];
+        }
+        return (fill != 0) ? crc | 0xFFFF0000 : crc;
+    }
+
+    static int xor8(byte[] data, int offset, int dataLength) {
+        int x0 = 0, x1 = 0, x2 = 0, x3 = 0;
+        int i = offset;
+        int end = offset + dataLength;
+        for (; i + 3 < end; i += 4) {
+            x0 ^= data[i];
+            x1 ^= data[i + 1];
+            x2 ^= data[i + 2];
+            x3 ^= data[i + 3];
+        }
+        for (; i < end; i++) {
+            x0 ^= data[i];
+        }
+        return (byte) (x0 ^ x1 ^ x2 ^ x3);
+    }
+
+    static int checksum16(byte[] data, int offset, int dataLength) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = offset;
+        int end = offset + dataLength;
+        for (; i + 3 < end; i += 4) {
+            s0 += data[i];
+            s1 += data[i + 1];
+            s2 += data[i + 2];
+            s3 += data[i + 3];
+        }
+        for (; i < end; i++) {
+            s0 += data[i];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    static int lrc16(byte[] data, int offset, int dataLength) {
+        //The reference masks at every step, which is the same as masking once
+        int lrc = checksum16(data, offset, dataLength) & 0xFFFF;
+        return ((lrc ^ 0xFFFF) + 1) & 0xFFFF;
+    }
+
+    /**
+     * Fletcher16 with the modulo deferred to the end of each block.
+     *
+     * The reference uses the Java remainder at every byte, whose sign follows
+     * the dividend. While the sums are not negative the deferred modulo gives
+     * the same result; once a negative byte is found the rest of the data is
+     * computed byte by byte as the reference does.
+     */
+    static int fletcher16(byte[] data, int offset, int dataLength) {
+        int sum1 = 0, sum2 = 0;
+        int i = offset;
+        int end = offset + dataLength;
+
+        while (i < end) {
+            int blockEnd = Math.min(end, i + FLETCHER_BLOCK);
+            int s1 = sum1, s2 = sum2, signs = 0;
+            for (int j = i; j < blockEnd; j++) {
+                int b = data[j];
+                signs |= b;
+                s1 += b;
+                s2 += s1;
+            }
+            if (signs < 0) {
+                break;
+            }
+            sum1 = s1 % 255;
+            sum2 = s2 % 255;
+            i = blockEnd;
+        }
+        for (; i < end; i++) {
+            sum1 = (sum1 + data[i]) % 255;
+            sum2 = (sum2 + sum1) % 255;
+        }
+        return (sum2 << 8) | sum1;
+    }
+}
@@ -0,0 +1,533 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * TCP gateway which shares one AMASP bus among many network clients.
+ *
+ * The clients speak AMASP over TCP (e.g. an AMASPSerialMaster over an
+ * AMASPSocketTransport). Their MRP packets are queued per client and sent to
+ * the bus through one asynchronous master in round robin order, with a quota
+ * of outstanding requests per client. Each SRP or CEP answer is sent back to
+ * the client which issued the request and the SIP packets of the bus are
+ * broadcast to all clients.
+ *
+ * A single selector thread does all the network I/O; the bus writes are done
+ * by a sender thread, so a slow serial write does not stall the clients.
+ *
+ * The packets carry no request ID, so a late answer of the bus could be
+ * matched to the next request of the same device, issued by another client.
+ * To keep the answers of the clients apart, each device has at most one
+ * request on the bus, and after a request times out the device is
+ * quarantined: it gets no further request for the quarantine period. An
+ * answer later than the request timeout plus the quarantine can still reach
+ * another client.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTcpGateway implements Runnable, AMASPReader.PacketListener {
+
+    //Output bytes after which a client which does not read is disconnected
+    private static final int MAX_CLIENT_OUTPUT = 1 << 20;
+    private static final int DEVICES = 0x1000;
+
+    private final AMASPAsyncMaster async;
+    private final SocketAddress bindAddress;
+    //Decoding and encoding of the client packets
+    private final AMASPSerialMaster codec = new AMASPSerialMaster();
+    private final AMASPFrameEncoder encoder = new AMASPFrameEncoder(codec);
+    private final byte[] encodeBuf = new byte[AMASPSerial.PKTMAXSIZE];
+    private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+    private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Client> ready = new ArrayDeque<>();
+    private final List<Client> clients = new ArrayList<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "AMASPTcpGateway-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile int clientQuota = 16;
+    private volatile int maxInFlight = 64;
+    private volatile int busyErrorCode = -1;
+    private volatile int timeoutErrorCode = -1;
+    private volatile boolean broadcastInterrupts = true;
+    private volatile long quarantineMillis = 1000;
+    private volatile boolean running = false;
+    private boolean stopped = false;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private int inFlight = 0;
+    //Devices with a request on the bus and end of the quarantines (nanoTime)
+    private final boolean[] busy = new boolean[DEVICES];
+    private final boolean[] quarantined = new boolean[DEVICES];
+    private final long[] quarantineEnd = new long[DEVICES];
+    //Earliest end of a quarantine which holds a request, 0 if none
+    private long nextRelease = 0;
+
+    private final class Client {
+
+        final SocketChannel channel;
+        final AMASPFrameDecoder decoder = new AMASPFrameDecoder(codec);
+        final ArrayDeque<Request> requests = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        int outputBytes = 0;
+        int outstanding = 0;
+        boolean queued = false;
+        boolean closed = false;
+        SelectionKey key;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final class Request {
+
+        final int deviceId;
+        final byte[] message;
+
+        Request(int deviceId, byte[] message) {
+            this.deviceId = deviceId;
+            this.message = message;
+        }
+    }
+
+    /**
+     * @param async The asynchronous master of the bus (the gateway starts
+     * and stops it).
+     * @param bindAddress The address where the clients connect.
+     */
+    public AMASPTcpGateway(AMASPAsyncMaster async, SocketAddress bindAddress) {
+        this.async = async;
+        this.bindAddress = bindAddress;
+        this.codec.setErrorCheckType(async.getMaster().getErrorCheckType());
+    }
+
+    /**
+     * @param clientQuota Maximum number of outstanding and queued requests of
+     * each client (16 by default).
+     */
+    public void setClientQuota(int clientQuota) {
+        this.clientQuota = clientQuota;
+    }
+
+    /**
+     * @param maxInFlight Maximum number of requests sent to the bus and not
+     * answered yet (64 by default, also limited by the asynchronous master).
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param quarantineMillis Time in milliseconds during which a device gets
+     * no request after one of its requests timed out (1000 by default).
+     */
+    public void setQuarantine(long quarantineMillis) {
+        this.quarantineMillis = quarantineMillis;
+    }
+
+    /**
+     * Sets the error code sent in a CEP packet when a client exceeds its quota
+     * or the asynchronous master rejects the request.
+     *
+     * @param errorCode The error code (0 to 255) or -1 to discard the request
+     * silently (default).
+     */
+    public void setBusyErrorCode(int errorCode) {
+        this.busyErrorCode = errorCode;
+    }
+
+    /**
+     * Sets the error code sent in a CEP packet when the bus does not answer a
+     * request in time.
+     *
+     * @param errorCode The error code (0 to 255) or -1 to send nothing
+     * (default, the client times out by itself).
+     */
+    public void setTimeoutErrorCode(int errorCode) {
+        this.timeoutErrorCode = errorCode;
+    }
+
+    /**
+     * Sets the error checking algorithm of the packets sent to the clients
+     * (the one of the master by default).
+     *
+     * @param errorCheckType The error checking algorithm.
+     */
+    public void setClientErrorCheckType(AMASPSerial.ErrorCheckType errorCheckType) {
+        codec.setErrorCheckType(errorCheckType);
+    }
+
+    /**
+     * @param broadcastInterrupts True to send the SIP packets of the bus to
+     * all clients (default).
+     */
+    public void setBroadcastInterrupts(boolean broadcastInterrupts) {
+        this.broadcastInterrupts = broadcastInterrupts;
+    }
+
+    /**
+     * Binds the server socket and starts the asynchronous master and the
+     * selector thread.
+     *
+     * @throws IOException If the server socket could not be bound.
+     * @throws IllegalStateException If the gateway was stopped.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (stopped) {
+            throw new IllegalStateException("The gateway can not be started again");
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(bindAddress);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        async.getReader().addListener(this);
+        async.start();
+        running = true;
+        thread = new Thread(this, "AMASPTcpGateway");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Disconnects the clients and stops the gateway and the asynchronous
+     * master. The sender thread is released as well, so the gateway can not
+     * be started again.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        stopped = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        async.getReader().removeListener(this);
+        async.stop();
+        sender.shutdown();
+    }
+
+    /**
+     * @return The address where the clients connect (with the actual port if
+     * bound to port 0).
+     * @throws IOException If the gateway is not started.
+     */
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * @return The number of connected clients.
+     */
+    public int getClientCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    /**
+     * Broadcasts the SIP packets of the bus (called from the reading thread).
+     */
+    @Override
+    public void packetReceived(PacketData packet) {
+        if (packet.getType() == PacketType.SIP && broadcastInterrupts) {
+            complete(() -> {
+                for (Client client : new ArrayList<>(clients)) {
+                    sendCode(client, (byte) '!', packet.getDeviceId(), packet.getCodeLength());
+                }
+            });
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = (nextRelease != 0) ? nextRelease - System.nanoTime() : 0;
+                if (nextRelease == 0) {
+                    selector.select();
+                } else if (wait > 0) {
+                    selector.select(Math.max(TimeUnit.NANOSECONDS.toMillis(wait), 1));
+                } else {
+                    selector.selectNow();
+                }
+                Runnable completion;
+                while ((completion = completions.poll()) != null) {
+                    completion.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            read(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(client);
+                        }
+                    }
+                }
+                dispatch();
+            }
+        } catch (IOException e) {
+            //Selector failure, the gateway stops
+            running = false;
+        }
+        for (Client client : new ArrayList<>(clients)) {
+            close(client);
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Runs an action in the selector thread.
+     */
+    private void complete(Runnable action) {
+        completions.add(action);
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            synchronized (clients) {
+                clients.add(client);
+            }
+        }
+    }
+
+    private void read(Client client) {
+        int n;
+        readBuf.clear();
+        try {
+            n = client.channel.read(readBuf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(client);
+            return;
+        }
+        byte[] data = readBuf.array();
+        int pos = 0;
+        while (pos < n || client.decoder.hasPending()) {
+            pos += client.decoder.decode(data, pos, n - pos);
+            if (client.decoder.isFrameReady() && client.decoder.getType() == PacketType.MRP) {
+                request(client);
+            }
+        }
+    }
+
+    private void request(Client client) {
+        AMASPFrameDecoder decoder = client.decoder;
+        int deviceId = decoder.getDeviceId();
+        if (client.outstanding + client.requests.size() >= clientQuota) {
+            if (busyErrorCode >= 0) {
+                sendCode(client, (byte) '~', deviceId, busyErrorCode);
+            }
+            return;
+        }
+        byte[] message = new byte[decoder.getCodeLength()];
+        System.arraycopy(decoder.getFrame(), AMASPPacket.MESSAGE_OFFSET, message, 0, message.length);
+        client.requests.addLast(new Request(deviceId, message));
+        if (!client.queued) {
+            client.queued = true;
+            ready.addLast(client);
+        }
+    }
+
+    /**
+     * Sends the queued requests to the bus, one per client in turn. A client
+     * whose next request is for a busy or quarantined device keeps its turn.
+     */
+    private void dispatch() {
+        long now = System.nanoTime();
+        nextRelease = 0;
+        //Clients passed over since the last request sent
+        int held = 0;
+        while (inFlight < maxInFlight && held < ready.size()) {
+            Client client = ready.pollFirst();
+            Request request = client.requests.peekFirst();
+            if (client.closed || request == null) {
+                client.queued = false;
+                continue;
+            }
+            int deviceId = request.deviceId;
+            if (quarantined[deviceId] && quarantineEnd[deviceId] - now <= 0) {
+                quarantined[deviceId] = false;
+            }
+            if (busy[deviceId] || quarantined[deviceId]) {
+                if (!busy[deviceId] && (nextRelease == 0 || quarantineEnd[deviceId] - nextRelease < 0)) {
+                    nextRelease = quarantineEnd[deviceId];
+                }
+                ready.addLast(client);
+                held++;
+                continue;
+            }
+            held = 0;
+            client.requests.pollFirst();
+            if (client.requests.isEmpty()) {
+                client.queued = false;
+            } else {
+                ready.addLast(client);
+            }
+            busy[deviceId] = true;
+            client.outstanding++;
+            inFlight++;
+            sender.execute(() -> async.requestAsync(deviceId, request.message)
+                    .whenComplete((response, error) -> complete(() -> answer(client, request, response, error))));
+        }
+    }
+
+    private void answer(Client client, Request request, PacketData response, Throwable error) {
+        client.outstanding--;
+        inFlight--;
+        busy[request.deviceId] = false;
+        Throwable cause = (error != null && error.getCause() != null) ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            quarantineEnd[request.deviceId] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quarantineMillis);
+            quarantined[request.deviceId] = true;
+        }
+        if (client.closed) {
+            return;
+        }
+        if (error == null) {
+            if (response.getType() == PacketType.SRP) {
+                byte[] message = response.getMessage();
+                encoder.encodeData(encodeBuf, 0, (byte) '#', response.getDeviceId(), message, 0, message.length);
+                enqueue(client, AMASPFrameEncoder.DATA_OVERHEAD + message.length);
+            } else {
+                sendCode(client, (byte) '~', response.getDeviceId(), response.getCodeLength());
+            }
+        } else {
+            int code = (cause instanceof TimeoutException) ? timeoutErrorCode : busyErrorCode;
+            if (code >= 0) {
+                sendCode(client, (byte) '~', request.deviceId, code);
+            }
+        }
+    }
+
+    private void sendCode(Client client, byte typeChar, int deviceId, int code) {
+        encoder.encodeCode(encodeBuf, 0, typeChar, deviceId, code);
+        enqueue(client, AMASPFrameEncoder.CODE_PACKET_SIZE);
+    }
+
+    /**
+     * Queues the packet in the encode buffer to a client.
+     */
+    private void enqueue(Client client, int length) {
+        if (client.closed) {
+            return;
+        }
+        if (client.outputBytes + length > MAX_CLIENT_OUTPUT) {
+            //The client does not read its answers
+            close(client);
+            return;
+        }
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put(encodeBuf, 0, length);
+        packet.flip();
+        client.output.addLast(packet);
+        client.outputBytes += length;
+        flush(client);
+    }
+
+    private void flush(Client client) {
+        try {
+            while (!client.output.isEmpty()) {
+                ByteBuffer packet = client.output.peekFirst();
+                int n = client.channel.write(packet);
+                client.outputBytes -= n;
+                if (packet.hasRemaining()) {
+                    break;
+                }
+                client.output.pollFirst();
+            }
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+        if (client.key.isValid()) {
+            client.key.interestOps(client.output.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(Client client) {
+        if (client.closed) {
+            return;
+        }
+        client.closed = true;
+        client.requests.clear();
+        client.output.clear();
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+        }
+        synchronized (clients) {
+            clients.remove(client);
+        }
+    }
+}
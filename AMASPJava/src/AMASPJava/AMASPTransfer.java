@@ -0,0 +1,106 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+
+/**
+ * Chunk format of the stream transfers over MRP/SRP packets (see
+ * AMASPTransferOutputStream, AMASPTransferInputStream and
+ * AMASPTransferHandler).
+ *
+ * Upload chunk (MRP): 'W', sequence number (4 hex digits), last chunk flag
+ * ('0' or '1'), data. Answer (SRP): 'A', next expected sequence number.
+ * Download request (MRP): 'R', sequence number. Answer (SRP): 'D', sequence
+ * number, last chunk flag, data.
+ *
+ * The sequence numbers wrap around at 0xFFFF.
+ *
+ * The chunks carry binary data, and only the None and LRC16 error checks of
+ * AMASPSerial handle the bytes from 0x80 to 0xFF: the other algorithms
+ * sign-extend them, and fletcher16 then yields negative check values which
+ * are sent as "FFFF" and rejected. The streams accept only those two.
+ *
+ * @author Andre L. Delai
+ *
+ */
+final class AMASPTransfer {
+
+    static final byte WRITE = 'W';
+    static final byte ACK = 'A';
+    static final byte READ = 'R';
+    static final byte DATA = 'D';
+    //Kind, sequence number and last chunk flag
+    static final int HEADER_SIZE = 6;
+    //The length field of the packets has 3 hex digits
+    static final int MAX_MESSAGE = 0xFFF;
+    static final int MAX_CHUNK = MAX_MESSAGE - HEADER_SIZE;
+    static final int SEQ_MASK = 0xFFFF;
+
+    private AMASPTransfer() {
+    }
+
+    /**
+     * @throws IllegalArgumentException If the error check of the packets
+     * sent to the device can not carry binary chunks.
+     */
+    static void checkErrorCheckType(AMASPAsyncMaster async, int deviceId) {
+        ErrorCheckType type = async.getMaster().errorCheckTypeFor(deviceId);
+        if (type != ErrorCheckType.None && type != ErrorCheckType.LRC16) {
+            throw new IllegalArgumentException("Binary chunks need the None or LRC16 error check, not " + type);
+        }
+    }
+
+    static byte[] chunk(byte kind, int seq, boolean last, byte[] data, int offset, int length) {
+        byte[] message = new byte[HEADER_SIZE + length];
+        message[0] = kind;
+        AMASPHex.write(message, 1, seq & SEQ_MASK, 4);
+        message[5] = (byte) (last ? '1' : '0');
+        System.arraycopy(data, offset, message, HEADER_SIZE, length);
+        return message;
+    }
+
+    static byte[] control(byte kind, int seq) {
+        byte[] message = new byte[5];
+        message[0] = kind;
+        AMASPHex.write(message, 1, seq & SEQ_MASK, 4);
+        return message;
+    }
+
+    /**
+     * @return The sequence number of a chunk or control message or -1 if the
+     * message is not of the kind.
+     */
+    static int seq(byte[] message, byte kind) {
+        if (message == null || message.length < 5 || message[0] != kind) {
+            return -1;
+        }
+        return AMASPHex.parse(message, 1, 4);
+    }
+
+    static boolean isLast(byte[] message) {
+        return message[5] == '1';
+    }
+
+    /**
+     * @return The signed distance from b to a in the sequence space.
+     */
+    static int distance(int a, int b) {
+        return (short) (a - b);
+    }
+}
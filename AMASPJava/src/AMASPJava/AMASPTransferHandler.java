@@ -0,0 +1,183 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Slave side of the stream transfers, registered as the request handler of a
+ * device in an AMASPSlaveServer.
+ *
+ * The chunks uploaded by an AMASPTransferOutputStream are read in order from
+ * getInputStream(); the requests of an AMASPTransferInputStream are served
+ * from the source set with setSource(). A handler serves one upload and one
+ * download, a new one is registered for each transfer.
+ *
+ * The handler relies on the slave server calling it in request order for the
+ * device. While the upload buffer is full the worker thread waits for the
+ * reader of getInputStream().
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTransferHandler implements AMASPSlaveServer.RequestHandler {
+
+    private final AMASPByteRing upload;
+    private final InputStream uploadStream;
+    private final int downloadWindow;
+    private int expectedSeq = 0;
+    //Recent download chunks by sequence number, to answer repeated requests
+    private final LinkedHashMap<Integer, byte[]> sent;
+    private volatile InputStream source;
+    private int nextSeq = 0;
+    private boolean sourceEnded = false;
+
+    /**
+     * @param uploadBufferSize The size of the upload buffer in bytes (at
+     * least one chunk).
+     * @param downloadWindow The number of recent download chunks kept to
+     * answer repeated requests (at least the window of the master).
+     */
+    public AMASPTransferHandler(int uploadBufferSize, int downloadWindow) {
+        this.upload = new AMASPByteRing(Math.max(uploadBufferSize, AMASPTransfer.MAX_CHUNK));
+        this.downloadWindow = downloadWindow;
+        this.sent = new LinkedHashMap<Integer, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > AMASPTransferHandler.this.downloadWindow;
+            }
+        };
+        this.uploadStream = new InputStream() {
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                try {
+                    upload.awaitData(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Transfer interrupted");
+                }
+                return upload.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Math.max(upload.available(), 0);
+            }
+
+            @Override
+            public void close() {
+                upload.close();
+            }
+        };
+    }
+
+    /**
+     * @return The stream of the uploaded bytes, which ends after the last
+     * chunk.
+     */
+    public InputStream getInputStream() {
+        return uploadStream;
+    }
+
+    /**
+     * @param source The stream of the bytes to be downloaded.
+     */
+    public void setSource(InputStream source) {
+        this.source = source;
+    }
+
+    @Override
+    public byte[] handleRequest(PacketData request) {
+        byte[] message = request.getMessage();
+        int seq;
+
+        if ((seq = AMASPTransfer.seq(message, AMASPTransfer.WRITE)) >= 0 && message.length >= AMASPTransfer.HEADER_SIZE) {
+            return receive(seq, message);
+        }
+        if ((seq = AMASPTransfer.seq(message, AMASPTransfer.READ)) >= 0) {
+            return serve(seq);
+        }
+        return null;
+    }
+
+    private byte[] receive(int seq, byte[] message) {
+        //Repeated and out of order chunks are only answered with the expected one
+        if (seq == expectedSeq && !upload.isClosed()) {
+            int length = message.length - AMASPTransfer.HEADER_SIZE;
+            //A chunk is written whole or not at all, so that its retransmission
+            //is not appended twice
+            if (!upload.awaitSpace(length) || upload.write(message, AMASPTransfer.HEADER_SIZE, length) < length) {
+                return null;
+            }
+            expectedSeq = (expectedSeq + 1) & AMASPTransfer.SEQ_MASK;
+            if (AMASPTransfer.isLast(message)) {
+                upload.close();
+            }
+        }
+        return AMASPTransfer.control(AMASPTransfer.ACK, expectedSeq);
+    }
+
+    private byte[] serve(int seq) {
+        InputStream in = source;
+        if (in == null) {
+            return null;
+        }
+        if (AMASPTransfer.distance(seq, nextSeq) < 0) {
+            //Repeated request
+            return sent.get(seq);
+        }
+        byte[] chunk = new byte[AMASPTransfer.MAX_CHUNK];
+        byte[] message = null;
+        while (AMASPTransfer.distance(seq, nextSeq) >= 0) {
+            int length = 0;
+            boolean last = sourceEnded;
+            try {
+                while (!last && length < chunk.length) {
+                    int n = in.read(chunk, length, chunk.length - length);
+                    if (n < 0) {
+                        last = true;
+                        sourceEnded = true;
+                    } else {
+                        length += n;
+                    }
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            message = AMASPTransfer.chunk(AMASPTransfer.DATA, nextSeq, last, chunk, 0, length);
+            sent.put(nextSeq, message);
+            nextSeq = (nextSeq + 1) & AMASPTransfer.SEQ_MASK;
+        }
+        return message;
+    }
+}
@@ -0,0 +1,181 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Input stream which downloads the bytes of a slave device (served by an
+ * AMASPTransferHandler) through an asynchronous master.
+ *
+ * The chunks are requested by sequence number ahead of the reading, keeping
+ * up to a window of requests in flight, so the transfer is not limited by the
+ * round trip time. A request which fails is sent again (the slave keeps the
+ * recent chunks), the following ones are not affected.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTransferInputStream extends InputStream {
+
+    private final AMASPAsyncMaster async;
+    private final int deviceId;
+    private final int window;
+    private final long timeoutMillis;
+    private final ArrayDeque<ChunkRequest> inFlight = new ArrayDeque<>();
+    private int nextSeq = 0;
+    private int maxRetries = 5;
+    private boolean lastReceived = false;
+    private byte[] current;
+    private int position;
+    private boolean closed = false;
+
+    private static final class ChunkRequest {
+
+        final int seq;
+        CompletableFuture<PacketData> future;
+        int retries = 0;
+
+        ChunkRequest(int seq) {
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @param async The asynchronous master (started by the caller).
+     * @param deviceId Id of the slave device.
+     * @param window Maximum number of chunk requests in flight (1 to 32767,
+     * also limited by the outstanding requests of the asynchronous master).
+     * @param timeoutMillis The deadline of each request in milliseconds.
+     * @throws IllegalArgumentException If the window is invalid or the master
+     * uses another error check than None or LRC16 for the device (the others
+     * can not carry binary chunks).
+     */
+    public AMASPTransferInputStream(AMASPAsyncMaster async, int deviceId, int window, long timeoutMillis) {
+        if (window < 1 || window > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        AMASPTransfer.checkErrorCheckType(async, deviceId);
+        this.async = async;
+        this.deviceId = deviceId;
+        this.window = window;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param maxRetries Maximum number of times a chunk is requested again (5
+     * by default).
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (current == null) ? 0 : current.length - position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        inFlight.clear();
+        current = null;
+    }
+
+    /**
+     * Makes the next bytes available in the current chunk.
+     *
+     * @return False at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || position == current.length) {
+            current = null;
+            if (lastReceived) {
+                return false;
+            }
+            while (inFlight.size() < window) {
+                ChunkRequest request = new ChunkRequest(nextSeq);
+                nextSeq = (nextSeq + 1) & AMASPTransfer.SEQ_MASK;
+                request.future = request(request.seq);
+                inFlight.addLast(request);
+            }
+            ChunkRequest oldest = inFlight.peekFirst();
+            byte[] message = null;
+            try {
+                message = oldest.future.get().getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfer interrupted");
+            } catch (ExecutionException e) {
+                //Timeout, rejected or failed request
+            }
+            if (AMASPTransfer.seq(message, AMASPTransfer.DATA) != oldest.seq || message.length < AMASPTransfer.HEADER_SIZE) {
+                if (++oldest.retries > maxRetries) {
+                    throw new IOException("Chunk " + oldest.seq + " not received from device " + deviceId);
+                }
+                oldest.future = request(oldest.seq);
+                continue;
+            }
+            inFlight.pollFirst();
+            if (AMASPTransfer.isLast(message)) {
+                //The requests beyond the end are answered with empty chunks
+                lastReceived = true;
+                inFlight.clear();
+            }
+            current = message;
+            position = AMASPTransfer.HEADER_SIZE;
+        }
+        return true;
+    }
+
+    private CompletableFuture<PacketData> request(int seq) {
+        byte[] message = AMASPTransfer.control(AMASPTransfer.READ, seq);
+        return async.requestAsync(deviceId, message, message.length, timeoutMillis);
+    }
+}
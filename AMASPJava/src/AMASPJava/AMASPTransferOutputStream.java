@@ -0,0 +1,220 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Output stream which uploads its bytes to a slave device (served by an
+ * AMASPTransferHandler) through an asynchronous master.
+ *
+ * The bytes are sent in chunks of the maximum packet size with sequence
+ * numbers, keeping up to a window of unacknowledged chunks in flight, so the
+ * transfer is not limited by the round trip time. A chunk which times out or
+ * is not acknowledged is sent again with all the following ones.
+ *
+ * flush() waits until all written bytes are acknowledged, close() also marks
+ * the end of the stream to the slave.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTransferOutputStream extends OutputStream {
+
+    private final AMASPAsyncMaster async;
+    private final int deviceId;
+    private final int window;
+    private final long timeoutMillis;
+    private final byte[] chunk = new byte[AMASPTransfer.MAX_CHUNK];
+    private final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+    private int chunkLength = 0;
+    private int nextSeq = 0;
+    private int maxRetries = 5;
+    private boolean closed = false;
+
+    private static final class Chunk {
+
+        final int seq;
+        final byte[] message;
+        CompletableFuture<PacketData> future;
+        int retries = 0;
+
+        Chunk(int seq, byte[] message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    /**
+     * @param async The asynchronous master (started by the caller).
+     * @param deviceId Id of the slave device.
+     * @param window Maximum number of unacknowledged chunks (1 to 32767, also
+     * limited by the outstanding requests of the asynchronous master).
+     * @param timeoutMillis The deadline of each chunk in milliseconds.
+     * @throws IllegalArgumentException If the window is invalid or the master
+     * uses another error check than None or LRC16 for the device (the others
+     * can not carry binary chunks).
+     */
+    public AMASPTransferOutputStream(AMASPAsyncMaster async, int deviceId, int window, long timeoutMillis) {
+        if (window < 1 || window > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        AMASPTransfer.checkErrorCheckType(async, deviceId);
+        this.async = async;
+        this.deviceId = deviceId;
+        this.window = window;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param maxRetries Maximum number of times a chunk is sent again (5 by
+     * default).
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunk.length) {
+            send(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, n);
+            chunkLength += n;
+            off += n;
+            len -= n;
+            if (chunkLength == chunk.length) {
+                send(false);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (chunkLength > 0) {
+            send(false);
+        }
+        while (!unacked.isEmpty()) {
+            awaitOldest();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        send(true);
+        while (!unacked.isEmpty()) {
+            awaitOldest();
+        }
+        closed = true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void send(boolean last) throws IOException {
+        while (unacked.size() >= window) {
+            awaitOldest();
+        }
+        Chunk c = new Chunk(nextSeq, AMASPTransfer.chunk(AMASPTransfer.WRITE, nextSeq, last, chunk, 0, chunkLength));
+        nextSeq = (nextSeq + 1) & AMASPTransfer.SEQ_MASK;
+        chunkLength = 0;
+        unacked.addLast(c);
+        c.future = async.requestAsync(deviceId, c.message, c.message.length, timeoutMillis);
+    }
+
+    /**
+     * Waits the acknowledgement of the oldest chunk in flight, sending again
+     * the unacknowledged chunks if it fails.
+     */
+    private void awaitOldest() throws IOException {
+        Chunk oldest = unacked.peekFirst();
+        int ack = -1;
+        try {
+            ack = AMASPTransfer.seq(oldest.future.get().getMessage(), AMASPTransfer.ACK);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } catch (ExecutionException e) {
+            //Timeout, rejected or failed request
+        }
+        if (ack >= 0 && AMASPTransfer.distance(ack, oldest.seq) > 0) {
+            //Every chunk before the next expected one was received
+            while (!unacked.isEmpty() && AMASPTransfer.distance(ack, unacked.peekFirst().seq) > 0) {
+                unacked.pollFirst();
+            }
+            return;
+        }
+        //Go back: the chunks from the oldest one on are sent again in order
+        if (++oldest.retries > maxRetries) {
+            throw new IOException("Chunk " + oldest.seq + " not acknowledged by device " + deviceId);
+        }
+        //The requests still in flight are awaited first, so the resent chunks
+        //neither exceed the outstanding limits nor take their answers
+        try {
+            async.awaitIdle(deviceId, 2 * timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        }
+        for (Chunk c : unacked) {
+            int n = acknowledged(c.future);
+            if (n >= 0 && (ack < 0 || AMASPTransfer.distance(n, ack) > 0)) {
+                ack = n;
+            }
+        }
+        while (ack >= 0 && !unacked.isEmpty() && AMASPTransfer.distance(ack, unacked.peekFirst().seq) > 0) {
+            unacked.pollFirst();
+        }
+        for (Chunk c : unacked) {
+            c.future = async.requestAsync(deviceId, c.message, c.message.length, timeoutMillis);
+        }
+    }
+
+    /**
+     * @return The next chunk expected by the slave if the request was
+     * acknowledged by now, -1 otherwise.
+     */
+    private static int acknowledged(CompletableFuture<PacketData> future) {
+        if (!future.isDone() || future.isCompletedExceptionally()) {
+            return -1;
+        }
+        return AMASPTransfer.seq(future.join().getMessage(), AMASPTransfer.ACK);
+    }
+}
@@ -0,0 +1,97 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+/**
+ * Byte transport under the AMASP objects (serial port, pipe, socket, memory).
+ *
+ * The methods follow the jSerialComm SerialPort ones: read() and write()
+ * work from the beginning of the buffer, read() never waits longer than the
+ * timeouts configured in the transport and the results are negative in
+ * errors.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public interface AMASPTransport {
+
+    /**
+     * Opens the transport.
+     *
+     * @return True if the transport was opened.
+     */
+    boolean open();
+
+    /**
+     * Closes the transport.
+     */
+    void close();
+
+    /**
+     * @return True if the transport is open.
+     */
+    boolean isOpen();
+
+    /**
+     * @return The number of bytes which can be read without waiting, or a
+     * negative value in error.
+     */
+    int bytesAvailable();
+
+    /**
+     * Reads bytes into the beginning of a buffer. When no byte is available
+     * it waits up to the read timeout for the first one, as a serial port in
+     * semi-blocking mode.
+     *
+     * @param buffer The destination buffer.
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or a negative value in error.
+     */
+    int read(byte[] buffer, int length);
+
+    /**
+     * Writes bytes from the beginning of a buffer.
+     *
+     * @param buffer The source buffer.
+     * @param length The number of bytes to write.
+     * @return The number of bytes written, or a negative value in error.
+     */
+    int write(byte[] buffer, int length);
+
+    /**
+     * Waits until there are bytes to be read. Transports which can signal
+     * the arrival of data wake up the waiting thread as soon as it arrives.
+     *
+     * @param timeoutNanos The maximum waiting time in nanoseconds.
+     * @return True if there are bytes to be read.
+     * @throws InterruptedException If the waiting thread was interrupted.
+     */
+    boolean awaitData(long timeoutNanos) throws InterruptedException;
+
+    /**
+     * @return The read timeout in milliseconds, used as the margin to receive
+     * the rest of a packet.
+     */
+    int getReadTimeout();
+
+    /**
+     * @return The time to transmit a byte in nanoseconds (0 if unknown or
+     * not limited by a line rate).
+     */
+    long getByteTimeNanos();
+}
@@ -0,0 +1,176 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPAsyncMaster over a memory transport, with a slave thread
+ * which echoes the requests.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPAsyncMasterTest {
+
+    private AMASPSerialMaster master;
+    private AMASPSerialSlave slave;
+    private Thread slaveThread;
+    private volatile boolean running;
+    //Number of requests the slave does not answer
+    private final AtomicInteger drops = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        master = new AMASPSerialMaster();
+        slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        running = true;
+        slaveThread = new Thread(() -> {
+            while (running) {
+                PacketData packet = slave.readPacket();
+                if (packet.getType() == PacketType.MRP && drops.getAndDecrement() <= 0) {
+                    slave.sendResponse(packet.getDeviceId(), packet.getMessage(), packet.getCodeLength());
+                }
+            }
+        });
+        slaveThread.setDaemon(true);
+        slaveThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        running = false;
+        slaveThread.join(5000);
+    }
+
+    @Test
+    public void answersMatchRequests() throws Exception {
+        AMASPAsyncMaster async = new AMASPAsyncMaster(master, 8, 64);
+        async.start();
+        try {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[32];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = async.requestAsync(i % 4, ("m" + i).getBytes());
+            }
+            for (int i = 0; i < futures.length; i++) {
+                PacketData answer = (PacketData) futures[i].get();
+                assertEquals(PacketType.SRP, answer.getType());
+                assertEquals(i % 4, answer.getDeviceId());
+                assertEquals("m" + i, new String(answer.getMessage()));
+            }
+            assertEquals(0, async.getOutstanding());
+        } finally {
+            async.stop();
+        }
+    }
+
+    @Test
+    public void missedRequestDoesNotBlockDevice() throws Exception {
+        missedRequest(4);
+    }
+
+    @Test
+    public void missedRequestDoesNotBlockDeviceWithOneSlot() throws Exception {
+        missedRequest(1);
+    }
+
+    /**
+     * The slave misses the first request and answers the following ones,
+     * which are sent one at a time: only the first one times out.
+     */
+    private void missedRequest(int maxPerDevice) throws Exception {
+        drops.set(1);
+        AMASPAsyncMaster async = new AMASPAsyncMaster(master, maxPerDevice, 64);
+        async.setDefaultTimeout(100);
+        async.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                CompletableFuture<PacketData> future = async.requestAsync(7, ("r" + i).getBytes());
+                if (i == 0) {
+                    try {
+                        future.get();
+                        fail("The missed request was answered");
+                    } catch (ExecutionException e) {
+                        assertTrue(e.getCause() instanceof TimeoutException);
+                    }
+                } else {
+                    assertEquals("r" + i, new String(future.get().getMessage()));
+                }
+            }
+            assertEquals(0, async.getOutstanding());
+        } finally {
+            async.stop();
+        }
+    }
+
+    @Test
+    public void limitsRejectRequests() throws Exception {
+        drops.set(Integer.MAX_VALUE);
+        AMASPAsyncMaster async = new AMASPAsyncMaster(master, 2, 64);
+        async.setDefaultTimeout(5000);
+        async.start();
+        try {
+            async.requestAsync(1, "a".getBytes());
+            async.requestAsync(1, "b".getBytes());
+            CompletableFuture<PacketData> third = async.requestAsync(1, "c".getBytes());
+            assertTrue(third.isCompletedExceptionally());
+            try {
+                third.get();
+                fail("The request over the limit was sent");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(2, async.getOutstanding());
+        } finally {
+            async.stop();
+        }
+    }
+
+    @Test
+    public void stopCancelsOutstandingRequests() throws Exception {
+        drops.set(Integer.MAX_VALUE);
+        AMASPAsyncMaster async = new AMASPAsyncMaster(master, 2, 64);
+        async.setDefaultTimeout(5000);
+        async.start();
+        CompletableFuture<PacketData> future = async.requestAsync(1, "a".getBytes());
+        async.stop();
+        try {
+            future.get();
+            fail("The request was not cancelled");
+        } catch (CancellationException e) {
+            //Expected
+        }
+        assertEquals(0, async.getOutstanding());
+    }
+}
@@ -0,0 +1,135 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPCapture.Direction;
+import AMASPJava.AMASPCapture.Record;
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPCapture and AMASPReplayer.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPCaptureTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("amaspcap").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static List<Record> read(File directory, String prefix) throws Exception {
+        List<Record> records = new ArrayList<>();
+        try (AMASPReplayer replayer = new AMASPReplayer(directory, prefix)) {
+            Record record;
+            while ((record = replayer.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @Test
+    public void capturesRawBytesAndDecodedPackets() throws Exception {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        AMASPCapture capture = new AMASPCapture(directory, "bus", 65536, 1024);
+        capture.start();
+        slave.setCapture(capture);
+
+        //Noise before the packet is kept in the raw bytes
+        transport.write("xx".getBytes(), 2);
+        master.sendRequest(0x21, "hello".getBytes(), 5);
+        PacketData packet = slave.readPacket();
+        assertEquals(PacketType.MRP, packet.getType());
+        capture.stop();
+
+        List<Record> records = read(directory, "bus");
+        StringBuilder raw = new StringBuilder();
+        Record decoded = null;
+        for (Record record : records) {
+            assertEquals(Direction.Received, record.getDirection());
+            if (record.getType() == null) {
+                raw.append(new String(record.getFrame()));
+            } else {
+                assertNull("One decoded packet expected", decoded);
+                decoded = record;
+            }
+        }
+        assertNotNull(decoded);
+        assertEquals(PacketType.MRP, decoded.getType());
+        assertEquals(0x21, decoded.getDeviceId());
+        assertTrue(raw.toString().startsWith("xx"));
+        assertTrue(raw.toString().endsWith(new String(decoded.getFrame())));
+
+        //The replay writes the raw bytes only
+        AMASPMemoryTransport target = new AMASPMemoryTransport(1 << 16);
+        target.getPeer().open();
+        try (AMASPReplayer replayer = new AMASPReplayer(directory, "bus")) {
+            assertEquals(records.size() - 1, replayer.replay(target, null, 0));
+        }
+        byte[] replayed = new byte[1024];
+        int n = target.getPeer().read(replayed, replayed.length);
+        assertEquals(raw.toString(), new String(replayed, 0, n));
+    }
+
+    @Test
+    public void restartDeletesEarlierSegments() throws Exception {
+        byte[] frame = new byte[1000];
+        AMASPCapture capture = new AMASPCapture(directory, "bus", 65536, 1024);
+        capture.start();
+        for (int i = 0; i < 200; i++) {
+            while (!capture.capture(Direction.Sent, PacketType.MRP, 1, frame, 0, frame.length)) {
+                Thread.sleep(1);
+            }
+        }
+        capture.stop();
+        assertTrue(AMASPCapture.segmentFile(directory, "bus", 2).exists());
+
+        capture.start();
+        capture.capture(Direction.Sent, PacketType.SRP, 2, frame, 0, 10);
+        capture.stop();
+        assertFalse(AMASPCapture.segmentFile(directory, "bus", 1).exists());
+        List<Record> records = read(directory, "bus");
+        assertEquals(1, records.size());
+        assertEquals(PacketType.SRP, records.get(0).getType());
+    }
+}
@@ -0,0 +1,98 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPDemuxReader over a memory bus with a slave thread which
+ * echoes the requests.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPDemuxReaderTest {
+
+    private AMASPSerialSlave slave;
+    private AMASPDemuxReader reader;
+    private volatile boolean running;
+
+    @Before
+    public void setUp() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        running = true;
+        Thread thread = new Thread(() -> {
+            while (running) {
+                PacketData packet = slave.readPacket();
+                if (packet.getType() == PacketType.MRP) {
+                    slave.sendResponse(packet.getDeviceId(), packet.getMessage(), packet.getMessage().length);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        reader = new AMASPDemuxReader(master);
+        reader.start();
+    }
+
+    @After
+    public void tearDown() {
+        running = false;
+        reader.stop();
+    }
+
+    @Test
+    public void failingListenerDoesNotSkipTheOthers() throws Exception {
+        RuntimeException failure = new RuntimeException("listener");
+        CountDownLatch received = new CountDownLatch(2);
+        AtomicInteger calls = new AtomicInteger();
+        reader.addInterruptListener(packet -> {
+            calls.incrementAndGet();
+            throw failure;
+        });
+        reader.addInterruptListener(packet -> received.countDown());
+        slave.sendInterruption(1, 10);
+        slave.sendInterruption(2, 20);
+        assertTrue(received.await(2, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+        assertSame(failure, reader.getLastFailure());
+    }
+
+    @Test
+    public void answerOfOutOfRangeIdIsMatched() throws Exception {
+        //Written as 0x123 in the header
+        PacketData answer = reader.request(0x1234, "abc".getBytes(), 3, 1000);
+        assertEquals(PacketType.SRP, answer.getType());
+        assertEquals(0x123, answer.getDeviceId());
+        assertEquals("abc", new String(answer.getMessage()));
+    }
+}
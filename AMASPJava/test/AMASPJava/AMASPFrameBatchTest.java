@@ -0,0 +1,82 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPFrameBatch against the packets sent one by one.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPFrameBatchTest {
+
+    private static byte[] drain(AMASPMemoryTransport transport) {
+        byte[] data = new byte[1 << 16];
+        int n = transport.read(data, data.length);
+        return Arrays.copyOf(data, n);
+    }
+
+    @Test
+    public void batchMatchesSinglePackets() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        master.begin(transport);
+        transport.getPeer().open();
+        master.setErrorCheckType(AMASPSerial.ErrorCheckType.CRC16);
+
+        master.sendRequest(0x12, "first".getBytes(), 5);
+        master.sendRequest(0xABC, "second".getBytes(), 6);
+        master.sendError(0x7, 0x42);
+        byte[] single = drain(transport.getPeer());
+
+        AMASPMetrics metrics = new AMASPMetrics();
+        master.setMetrics(metrics);
+        AMASPFrameBatch batch = new AMASPFrameBatch(master, 1024);
+        batch.addRequest(0x12, "first".getBytes(), 5);
+        batch.addRequest(0xABC, "second".getBytes(), 6);
+        batch.addError(0x7, 0x42);
+        assertEquals(3, batch.getFrameCount());
+        assertEquals(0, metrics.getSentCount(PacketType.MRP));
+        assertEquals(single.length, batch.flush());
+        assertArrayEquals(single, drain(transport.getPeer()));
+        assertEquals(2, metrics.getSentCount(PacketType.MRP));
+        assertEquals(1, metrics.getSentCount(PacketType.CEP));
+        assertEquals(0, batch.getFrameCount());
+    }
+
+    @Test
+    public void sizeThresholdFlushes() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        master.begin(transport);
+        transport.getPeer().open();
+        AMASPFrameBatch batch = new AMASPFrameBatch(master, 1024);
+        batch.setAutoFlush(3 * AMASPFrameEncoder.CODE_PACKET_SIZE, -1);
+        batch.addError(1, 1);
+        batch.addError(2, 2);
+        assertEquals(2, batch.getFrameCount());
+        batch.addError(3, 3);
+        assertEquals(0, batch.getFrameCount());
+        assertEquals(3 * AMASPFrameEncoder.CODE_PACKET_SIZE, drain(transport.getPeer()).length);
+    }
+}
@@ -0,0 +1,117 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the resynchronization of AMASPFrameDecoder after noise and
+ * rejected packets, with the bytes fed in chunks of several sizes.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPFrameDecoderTest {
+
+    private static final int[] CHUNK_SIZES = {1, 2, 7, 64, Integer.MAX_VALUE};
+
+    private final AMASPSerialMaster owner = new AMASPSerialMaster();
+    private final AMASPFrameEncoder encoder = new AMASPFrameEncoder(owner);
+
+    public AMASPFrameDecoderTest() {
+        owner.setErrorCheckType(ErrorCheckType.CRC16);
+    }
+
+    private byte[] data(char typeChar, int deviceId, String message) {
+        byte[] pkt = new byte[message.length() + AMASPFrameEncoder.DATA_OVERHEAD];
+        encoder.encodeData(pkt, 0, (byte) typeChar, deviceId, message.getBytes(), 0, message.length());
+        return pkt;
+    }
+
+    private byte[] code(char typeChar, int deviceId, int code) {
+        byte[] pkt = new byte[AMASPFrameEncoder.CODE_PACKET_SIZE];
+        encoder.encodeCode(pkt, 0, (byte) typeChar, deviceId, code);
+        return pkt;
+    }
+
+    private static byte[] concat(Object... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object part : parts) {
+            byte[] bytes = (part instanceof String) ? ((String) part).getBytes() : (byte[]) part;
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    //Packets decoded from the stream as "type device code/length"
+    private List<String> decode(byte[] stream, int chunkSize) {
+        AMASPFrameDecoder decoder = new AMASPFrameDecoder(owner);
+        List<String> packets = new ArrayList<>();
+        int pos = 0;
+        while (pos < stream.length || decoder.hasPending()) {
+            pos += decoder.decode(stream, pos, Math.min(chunkSize, stream.length - pos));
+            if (decoder.isFrameReady()) {
+                packets.add(decoder.getType() + " " + decoder.getDeviceId() + " " + decoder.getCodeLength());
+            }
+        }
+        return packets;
+    }
+
+    private void assertDecoded(byte[] stream, String... expected) {
+        for (int chunkSize : CHUNK_SIZES) {
+            assertEquals("Chunks of " + chunkSize, Arrays.asList(expected), decode(stream, chunkSize));
+        }
+    }
+
+    @Test
+    public void noiseIsSkipped() {
+        assertDecoded(concat("noise\r\n!!!", data('#', 1, "hello"), "!?x", code('!', 2, 0x10), "!"),
+                "SRP 1 5", "SIP 2 16");
+    }
+
+    @Test
+    public void truncatedPacketDoesNotHideTheNext() {
+        byte[] first = data('?', 1, "hello");
+        assertDecoded(concat(Arrays.copyOf(first, 10), data('#', 2, "world")), "SRP 2 5");
+    }
+
+    @Test
+    public void corruptedPacketDoesNotHideTheNext() {
+        byte[] first = data('?', 1, "hello");
+        first[10] ^= 0x01;
+        assertDecoded(concat(first, code('~', 3, 0x42)), "CEP 3 66");
+    }
+
+    @Test
+    public void packetsInsideARejectedOneAreReplayed() {
+        //Its length field swallows the next two packets
+        byte[] first = data('?', 1, "hello");
+        first[7] = 'F';
+        first[8] = 'F';
+        byte[] padding = new byte[0x100];
+        Arrays.fill(padding, (byte) '.');
+        assertDecoded(concat(first, code('!', 2, 1), data('#', 3, "abc"), padding, data('#', 4, "")),
+                "SIP 2 1", "SRP 3 3", "SRP 4 0");
+    }
+}
@@ -0,0 +1,149 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the packets written by AMASPFrameEncoder are byte for byte the
+ * ones written by the String.format based code of the first releases.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPFrameEncoderTest {
+
+    private static final int[] DEVICE_IDS = {0, 1, 0x0AB, 0xFFF, 0x1000, 0x1234, -1};
+    private static final int[] CODES = {0, 0x0F, 0xFF, 0x100, 300, -1};
+
+    private AMASPMemoryTransport transport;
+    private AMASPSerialMaster master;
+    private AMASPSerialSlave slave;
+    private final AMASPSerialMaster reference = new AMASPSerialMaster();
+    private final Random random = new Random(3);
+
+    @Before
+    public void setUp() {
+        transport = new AMASPMemoryTransport(1 << 16);
+        master = new AMASPSerialMaster();
+        slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport);
+        reference.setErrorCheckEngine(null);
+    }
+
+    //The first digits of the String.format field, as the packets were built
+    private static void putHex(byte[] pkt, int offset, int value, int digits) {
+        byte[] hex = String.format("%1$0" + digits + "X", value).getBytes();
+        System.arraycopy(hex, 0, pkt, offset, digits);
+    }
+
+    private byte[] baselineData(char typeChar, ErrorCheckType eca, int deviceId, byte[] message) {
+        byte[] pkt = new byte[message.length + 15];
+        pkt[0] = (byte) '!';
+        pkt[1] = (byte) typeChar;
+        putHex(pkt, 2, eca.ordinal(), 1);
+        putHex(pkt, 3, deviceId, 3);
+        putHex(pkt, 6, message.length, 3);
+        System.arraycopy(message, 0, pkt, 9, message.length);
+        putHex(pkt, 9 + message.length, reference.errorCheck(pkt, message.length + 9, eca), 4);
+        pkt[13 + message.length] = (byte) '\r';
+        pkt[14 + message.length] = (byte) '\n';
+        return pkt;
+    }
+
+    private byte[] baselineCode(char typeChar, ErrorCheckType eca, int deviceId, int code) {
+        byte[] pkt = new byte[14];
+        pkt[0] = (byte) '!';
+        pkt[1] = (byte) typeChar;
+        putHex(pkt, 2, eca.ordinal(), 1);
+        putHex(pkt, 3, deviceId, 3);
+        putHex(pkt, 6, code, 2);
+        putHex(pkt, 8, reference.errorCheck(pkt, 8, eca), 4);
+        pkt[12] = (byte) '\r';
+        pkt[13] = (byte) '\n';
+        return pkt;
+    }
+
+    private byte[] written() {
+        AMASPMemoryTransport peer = transport.getPeer();
+        byte[] data = new byte[peer.bytesAvailable()];
+        assertEquals(data.length, peer.read(data, data.length));
+        return data;
+    }
+
+    private byte[] message(int length) {
+        byte[] message = new byte[length];
+        random.nextBytes(message);
+        return message;
+    }
+
+    @Test
+    public void hexFieldsMatchStringFormat() {
+        byte[] field = new byte[4];
+        int[] edges = {0, 1, 0xF, 0x10, 0xFF, 0x100, 0xFFF, 0x1000, 0xFFFF, 0x10000,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, -1, -0x10000};
+        for (int digits = 1; digits <= 4; digits++) {
+            for (int i = 0; i < edges.length + 1000; i++) {
+                int value = (i < edges.length) ? edges[i] : random.nextInt() >> random.nextInt(32);
+                byte[] expected = new byte[4];
+                putHex(expected, 0, value, digits);
+                Arrays.fill(field, (byte) 0);
+                AMASPHex.write(field, 0, value, digits);
+                assertArrayEquals(String.format("%X in %d digits", value, digits), expected, field);
+            }
+        }
+    }
+
+    @Test
+    public void dataPacketsMatchTheBaseline() {
+        for (ErrorCheckType eca : ErrorCheckType.values()) {
+            master.setErrorCheckType(eca);
+            slave.setErrorCheckType(eca);
+            for (int deviceId : DEVICE_IDS) {
+                for (int length : new int[] {0, 1, 64, 4095}) {
+                    byte[] message = message(length);
+                    master.sendRequest(deviceId, message, length);
+                    assertArrayEquals(eca + " MRP", baselineData('?', eca, deviceId, message), written());
+                    slave.sendResponse(deviceId, message, length);
+                    assertArrayEquals(eca + " SRP", baselineData('#', eca, deviceId, message), written());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void codePacketsMatchTheBaseline() {
+        for (ErrorCheckType eca : ErrorCheckType.values()) {
+            slave.setErrorCheckType(eca);
+            for (int deviceId : DEVICE_IDS) {
+                for (int code : CODES) {
+                    slave.sendInterruption(deviceId, code);
+                    assertArrayEquals(eca + " SIP", baselineCode('!', eca, deviceId, code), written());
+                    slave.sendError(deviceId, code);
+                    assertArrayEquals(eca + " CEP", baselineCode('~', eca, deviceId, code), written());
+                }
+            }
+        }
+    }
+}
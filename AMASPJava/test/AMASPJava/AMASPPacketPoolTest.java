@@ -0,0 +1,81 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketType;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPPacketPool and the pooled reading.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPacketPoolTest {
+
+    @Test
+    public void releasedPacketIsReused() {
+        AMASPPacketPool pool = new AMASPPacketPool(4);
+        AMASPPacket packet = pool.acquire();
+        packet.release();
+        assertEquals(1, pool.size());
+        assertSame(packet, pool.acquire());
+        assertEquals(0, pool.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseFails() {
+        AMASPPacketPool pool = new AMASPPacketPool(4);
+        AMASPPacket packet = pool.acquire();
+        packet.release();
+        packet.release();
+    }
+
+    @Test
+    public void doubleReleaseDoesNotShareBuffers() {
+        AMASPPacketPool pool = new AMASPPacketPool(4);
+        AMASPPacket packet = pool.acquire();
+        packet.release();
+        try {
+            packet.release();
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        assertNotSame(pool.acquire(), pool.acquire());
+    }
+
+    @Test
+    public void pooledReading() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        AMASPPacketPool pool = new AMASPPacketPool(4);
+        for (int i = 0; i < 10; i++) {
+            master.sendRequest(i, ("m" + i).getBytes(), 2);
+            AMASPPacket packet = slave.readPacket(pool);
+            assertEquals(PacketType.MRP, packet.getType());
+            assertEquals(i, packet.getDeviceId());
+            assertEquals("m" + i, new String(packet.getMessage()));
+            packet.release();
+        }
+        assertEquals(1, pool.size());
+    }
+}
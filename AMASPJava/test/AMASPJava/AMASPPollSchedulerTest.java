@@ -0,0 +1,120 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPPollScheduler with a slave thread which raises an
+ * interruption before each answer.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPollSchedulerTest {
+
+    private AMASPPollScheduler scheduler;
+    private Thread slaveThread;
+    private volatile boolean running;
+
+    @Before
+    public void setUp() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        running = true;
+        slaveThread = new Thread(() -> {
+            while (running) {
+                PacketData packet = slave.readPacket();
+                if (packet.getType() == PacketType.MRP) {
+                    slave.sendInterruption(packet.getDeviceId(), 0x55);
+                    slave.sendResponse(packet.getDeviceId(), packet.getMessage(), packet.getCodeLength());
+                }
+            }
+        });
+        slaveThread.setDaemon(true);
+        slaveThread.start();
+        scheduler = new AMASPPollScheduler(master);
+        scheduler.setTurnaroundMicros(50000);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        scheduler.stop();
+        running = false;
+        slaveThread.join(5000);
+    }
+
+    @Test
+    public void interruptsReachTheListener() throws Exception {
+        CountDownLatch interrupts = new CountDownLatch(3);
+        scheduler.setInterruptListener(packet -> {
+            assertEquals(PacketType.SIP, packet.getType());
+            assertEquals(0x55, packet.getCodeLength());
+            interrupts.countDown();
+        });
+        scheduler.addDevice(3, "poll".getBytes(), 10, 0, 4);
+        scheduler.start();
+        assertTrue(interrupts.await(5, TimeUnit.SECONDS));
+        assertEquals("poll", new String(scheduler.getLatest(3).getMessage()));
+    }
+
+    @Test
+    public void failingPollDoesNotStopTheScheduler() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        scheduler.setListener((deviceId, response) -> {
+            if (polls.incrementAndGet() == 1) {
+                throw new IllegalStateException("listener failure");
+            }
+            if (polls.get() == 3) {
+                done.countDown();
+            }
+        });
+        scheduler.addDevice(3, "poll".getBytes(), 10, 0, 4);
+        scheduler.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.isRunning());
+        assertTrue(scheduler.getLastFailure() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void restartPollsAgain() throws Exception {
+        scheduler.addDevice(3, "poll".getBytes(), 10, 0, 4);
+        scheduler.start();
+        scheduler.stop();
+        assertFalse(scheduler.isRunning());
+        CountDownLatch done = new CountDownLatch(2);
+        scheduler.setListener((deviceId, response) -> done.countDown());
+        scheduler.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.isRunning());
+    }
+}
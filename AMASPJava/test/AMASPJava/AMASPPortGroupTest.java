@@ -0,0 +1,105 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPPortGroup with two memory buses, each with a slave thread
+ * which answers with the bus name.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPPortGroupTest {
+
+    private AMASPPortGroup group;
+    private volatile boolean running;
+
+    private AMASPSerialMaster bus(String name) {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 16);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        Thread thread = new Thread(() -> {
+            while (running) {
+                PacketData packet = slave.readPacket();
+                if (packet.getType() == PacketType.MRP) {
+                    slave.sendResponse(packet.getDeviceId(), name.getBytes(), name.length());
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return master;
+    }
+
+    @Before
+    public void setUp() {
+        running = true;
+        group = new AMASPPortGroup();
+        group.addPort("a", bus("a"), 4, 16);
+        group.start();
+    }
+
+    @After
+    public void tearDown() {
+        running = false;
+        group.stop();
+    }
+
+    @Test
+    public void requestsFollowTheRoutes() throws Exception {
+        //Added while running
+        group.addPort("b", bus("b"), 4, 16);
+        group.mapDevice(1, "a");
+        group.mapDevice(2, "b");
+        assertEquals("a", new String(group.requestAsync(1, "x".getBytes()).get().getMessage()));
+        assertEquals("b", new String(group.requestAsync(2, "x".getBytes()).get().getMessage()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deviceIdIsValidated() {
+        group.mapDevice(0x1000, "a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeDeviceIdIsValidated() {
+        group.mapDevice(-1, "a");
+    }
+
+    @Test
+    public void removedPortLosesItsRoutes() {
+        group.mapDevice(1, "a");
+        group.removePort("a");
+        try {
+            group.requestAsync(1, "x".getBytes());
+            fail("Request routed to a removed port");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of AMASPTableErrorCheck against the reference (bit-wise) algorithms
+ * of AMASPSerial, over random binary and ASCII data.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTableErrorCheckTest {
+
+    private final AMASPSerialMaster reference = new AMASPSerialMaster();
+    private final AMASPTableErrorCheck table = AMASPTableErrorCheck.getInstance();
+
+    public AMASPTableErrorCheckTest() {
+        //The table engine is the default one
+        reference.setErrorCheckEngine(null);
+    }
+
+    private void assertSameChecks(byte[] data, int offset, int length) {
+        byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+        for (ErrorCheckType type : ErrorCheckType.values()) {
+            assertEquals(type + " of " + length + " bytes",
+                    reference.errorCheck(copy, length, type), table.check(type, data, offset, length));
+        }
+    }
+
+    @Test
+    public void binaryDataMatchesTheReference() {
+        Random random = new Random(1);
+        //Beyond the Fletcher16 block
+        byte[] data = new byte[10000];
+        for (int i = 0; i < 500; i++) {
+            random.nextBytes(data);
+            int length = random.nextInt(i < 450 ? 300 : data.length - 16);
+            assertSameChecks(data, random.nextInt(16), length);
+        }
+    }
+
+    @Test
+    public void asciiDataMatchesTheReference() {
+        Random random = new Random(2);
+        byte[] data = new byte[4200];
+        for (int i = 0; i < 200; i++) {
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (0x20 + random.nextInt(0x5F));
+            }
+            assertSameChecks(data, random.nextInt(16), random.nextInt(data.length - 16));
+        }
+    }
+
+    @Test
+    public void extremeDataMatchesTheReference() {
+        byte[] data = new byte[9000];
+        for (byte fill : new byte[] {0, (byte) 0x7F, (byte) 0x80, (byte) 0xFF}) {
+            Arrays.fill(data, fill);
+            for (int length : new int[] {0, 1, 2, 255, 4095, 4096, 4097, 9000}) {
+                assertSameChecks(data, 0, length);
+            }
+        }
+    }
+}
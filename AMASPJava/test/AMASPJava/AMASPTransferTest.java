@@ -0,0 +1,174 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.ErrorCheckType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the stream transfers over a memory transport, for each
+ * error checking algorithm.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTransferTest {
+
+    private static final int DEVICE = 0x42;
+
+    private AMASPSlaveServer server;
+    private AMASPAsyncMaster async;
+    private AMASPTransferHandler handler;
+
+    /**
+     * Connects a master and a slave server with the transfer handler, which
+     * does not answer one request in every dropRate ones (0 for none).
+     */
+    private void connect(ErrorCheckType type, int dropRate) {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1 << 20);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        master.setEventDrivenReceive(true);
+        slave.setEventDrivenReceive(true);
+        master.setErrorCheckType(type);
+        slave.setErrorCheckType(type);
+        handler = new AMASPTransferHandler(1 << 14, 64);
+        Random loss = new Random(7);
+        server = new AMASPSlaveServer(slave, 4, 1024);
+        server.setHandler(DEVICE, request -> {
+            byte[] answer = handler.handleRequest(request);
+            return (dropRate > 0 && loss.nextInt(dropRate) == 0) ? null : answer;
+        });
+        server.start();
+        async = new AMASPAsyncMaster(master, 16, 64);
+        async.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (async != null) {
+            async.stop();
+            server.stop();
+        }
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(3).nextBytes(data);
+        return data;
+    }
+
+    private void upload(byte[] data) throws Exception {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream in = handler.getInputStream();
+                byte[] buffer = new byte[1000];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    received.write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                //Checked by the comparison
+            }
+        });
+        reader.start();
+        try (AMASPTransferOutputStream out = new AMASPTransferOutputStream(async, DEVICE, 16, 50)) {
+            out.setMaxRetries(20);
+            out.write(data);
+        }
+        reader.join(10000);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    private void download(byte[] data) throws Exception {
+        handler.setSource(new ByteArrayInputStream(data));
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (AMASPTransferInputStream in = new AMASPTransferInputStream(async, DEVICE, 16, 50)) {
+            in.setMaxRetries(20);
+            byte[] buffer = new byte[7777];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                received.write(buffer, 0, n);
+            }
+        }
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void roundTripNone() throws Exception {
+        connect(ErrorCheckType.None, 0);
+        upload(data(300001));
+        download(data(300001));
+    }
+
+    @Test
+    public void roundTripLRC16() throws Exception {
+        connect(ErrorCheckType.LRC16, 0);
+        upload(data(300001));
+        download(data(300001));
+    }
+
+    @Test
+    public void roundTripWithLostAnswers() throws Exception {
+        connect(ErrorCheckType.LRC16, 20);
+        upload(data(100001));
+        download(data(100001));
+    }
+
+    @Test
+    public void emptyTransfers() throws Exception {
+        connect(ErrorCheckType.LRC16, 0);
+        upload(new byte[0]);
+        download(new byte[0]);
+    }
+
+    @Test
+    public void otherAlgorithmsAreRejected() {
+        for (ErrorCheckType type : ErrorCheckType.values()) {
+            if (type == ErrorCheckType.None || type == ErrorCheckType.LRC16) {
+                continue;
+            }
+            connect(type, 0);
+            try {
+                new AMASPTransferOutputStream(async, DEVICE, 16, 50);
+                fail("Output stream accepted " + type);
+            } catch (IllegalArgumentException e) {
+                //Expected
+            }
+            try {
+                new AMASPTransferInputStream(async, DEVICE, 16, 50);
+                fail("Input stream accepted " + type);
+            } catch (IllegalArgumentException e) {
+                //Expected
+            }
+            tearDown();
+        }
+        async = null;
+    }
+}
@@ -0,0 +1,87 @@
+/*    
+  Created by Andre L. Delai.
+
+  This is a free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+*/
+package AMASPJava;
+
+import AMASPJava.AMASPSerial.PacketData;
+import AMASPJava.AMASPSerial.PacketType;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the read timeout of the memory and stream transports, which must
+ * behave as a serial port in semi-blocking mode.
+ *
+ * @author Andre L. Delai
+ *
+ */
+public class AMASPTransportTest {
+
+    private static void assertReadTimesOut(AMASPTransport transport) {
+        long start = System.nanoTime();
+        assertEquals(0, transport.read(new byte[16], 16));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue("Returned after " + elapsed + " ms", elapsed >= transport.getReadTimeout() - 10);
+    }
+
+    @Test
+    public void memoryReadWaitsForTheTimeout() {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1024);
+        transport.open();
+        transport.setReadTimeout(100);
+        assertReadTimesOut(transport);
+    }
+
+    @Test
+    public void streamReadWaitsForTheTimeout() throws Exception {
+        PipedInputStream in = new PipedInputStream(new PipedOutputStream());
+        AMASPStreamTransport transport = new AMASPStreamTransport(in, new PipedOutputStream(new PipedInputStream()), 1024);
+        transport.open();
+        transport.setReadTimeout(100);
+        try {
+            assertReadTimesOut(transport);
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void pollingReadPacketWaitsForTheAnswer() throws Exception {
+        AMASPMemoryTransport transport = new AMASPMemoryTransport(1024);
+        AMASPSerialMaster master = new AMASPSerialMaster();
+        AMASPSerialSlave slave = new AMASPSerialSlave();
+        master.begin(transport);
+        slave.begin(transport.getPeer());
+        transport.setReadTimeout(500);
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            slave.sendResponse(7, "late".getBytes(), 4);
+        });
+        thread.start();
+        PacketData packet = master.readPacket();
+        thread.join();
+        assertEquals(PacketType.SRP, packet.getType());
+        assertEquals(7, packet.getDeviceId());
+        assertEquals("late", new String(packet.getMessage()));
+    }
+}